@@ -0,0 +1,176 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.ActionFactory;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks for the planner's inner loop, run on the initial state of every scenario in data/ and on a state a
+ * few actions into a plan, where peasants are away from the town hall. Each benchmark measures one operation the
+ * search does per expansion or per child. Run main to report ns/op together with the allocation rate from the GC
+ * profiler, see README.txt.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlannerBenchmark {
+
+	// How many of the cheapest children to follow from the start to get the state a few actions in
+	private static final int STEPS_IN = 3;
+
+	@Param({ "data/midasSmall.xml", "data/midasLarge.xml",
+		"data/midasSmall_BuildPeasant.xml", "data/midasLarge_BuildPeasant.xml" })
+	public String scenario;
+
+	@Param({ "start", "inPlan" })
+	public String at;
+
+	private GameState state;				// The state the operations are run on
+	private GameState sibling;				// Another child of the same parent, to compare to
+	private List<StripsAction> childActions;	// The actions of one of the state's children
+	private int peasantID;					// The first peasant of the state
+	private Position resourcePosition;		// The resource nearest the first peasant
+	private int resource;					// The index of that resource
+	private StripsAction harvest;
+	private StripsAction deposit;
+	private StripsAction gatherCycle;
+
+	@Setup
+	public void setUp() throws IOException {
+		state = Scenario.load(scenario).createInitialState();
+		if (at.equals("inPlan")) {
+			for (int i = 0; i < STEPS_IN; i++) {
+				state = cheapest(state.generateChildren());
+			}
+		}
+
+		List<GameState> children = state.generateChildren();
+		childActions = children.get(0).getLastActions();
+		sibling = children.get(children.size() - 1);
+
+		peasantID = state.getPeasantIDAt(0);
+		resourcePosition = state.nearestMineToPosition(state.getPeasantPosition(peasantID));
+		resource = state.getLayout().targetAt(resourcePosition);
+		// A harvest or deposit the peasant can not take from here is still checked, in no direction
+		harvest = ActionFactory.makeHarvestAction(state, peasantID, GameState.Resource.GOLD);
+		if (harvest == null) {
+			harvest = ActionFactory.makeHarvestAction(peasantID, GameState.Resource.GOLD, resource, null);
+		}
+		deposit = ActionFactory.makeDepositAction(state, peasantID);
+		if (deposit == null) {
+			deposit = ActionFactory.makeDepositAction(peasantID, null);
+		}
+		gatherCycle = ActionFactory.makeGatherCycleAction(state, peasantID, resource);
+	}
+
+	private static GameState cheapest(List<GameState> children) {
+		GameState best = children.get(0);
+		for (GameState child : children) {
+			if (child.compareTo(best) < 0) {
+				best = child;
+			}
+		}
+		return best;
+	}
+
+	@Benchmark
+	public GameState applyActions() {
+		return new GameState(state, new ArrayList<StripsAction>(childActions));
+	}
+
+	@Benchmark
+	public List<GameState> generateChildren() {
+		return state.generateChildren();
+	}
+
+	@Benchmark
+	public double heuristic() {
+		return state.heuristic();
+	}
+
+	@Benchmark
+	public int compareTo() {
+		return state.compareTo(sibling);
+	}
+
+	@Benchmark
+	public StripsAction makeMoveAction() {
+		return ActionFactory.makeMoveAction(state, peasantID, resourcePosition);
+	}
+
+	@Benchmark
+	public StripsAction makeHarvestAction() {
+		return ActionFactory.makeHarvestAction(state, peasantID, GameState.Resource.GOLD);
+	}
+
+	@Benchmark
+	public StripsAction makeDepositAction() {
+		return ActionFactory.makeDepositAction(state, peasantID);
+	}
+
+	@Benchmark
+	public StripsAction makeGatherCycleAction() {
+		return ActionFactory.makeGatherCycleAction(state, peasantID, resource);
+	}
+
+	@Benchmark
+	public StripsAction makeBuildAction() {
+		return ActionFactory.makeBuildAction(state);
+	}
+
+	// A move resolves its destination to a cell next to the target when it is made, so it is made for every check,
+	// as generateChildren does
+	@Benchmark
+	public boolean movePreconditions() {
+		StripsAction move = ActionFactory.makeMoveAction(state, peasantID, resourcePosition);
+		return move != null && move.preconditionsMet(state);
+	}
+
+	@Benchmark
+	public boolean harvestPreconditions() {
+		return harvest.preconditionsMet(state);
+	}
+
+	@Benchmark
+	public boolean depositPreconditions() {
+		return deposit.preconditionsMet(state);
+	}
+
+	@Benchmark
+	public boolean gatherCyclePreconditions() {
+		return gatherCycle.preconditionsMet(state);
+	}
+
+	/**
+	 * Runs every benchmark with the GC profiler, which adds the allocation rate and bytes allocated per operation.
+	 * Arguments are a regular expression picking the benchmarks to run, all of them if none is given.
+	 */
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PlannerBenchmark.class.getSimpleName() + (args.length > 0 ? "." + args[0] : ""))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
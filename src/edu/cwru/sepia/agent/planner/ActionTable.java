@@ -0,0 +1,119 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The actions made on one map, by the 64 bit key ActionFactory packs each one into. Every action the search makes is
+ * looked up here first, so a lookup must not allocate: like the ClosedTable it uses open addressing with linear
+ * probing over a primitive key array, so no key is ever boxed.
+ *
+ * Children are built on several threads at once, so the table is shared. Lookups take no lock: a slot's action is
+ * set before its key, and both arrays are atomic, so a key that is seen always comes with its action. Inserts are
+ * serialized, and growing builds new arrays before publishing them, so a lookup on the old ones at worst misses an
+ * action and makes it again through putIfAbsent, which checks the current arrays under the lock. Keys must be
+ * positive, 0 marks an empty slot.
+ */
+public class ActionTable {
+
+	private static final long EMPTY = 0L;
+	private static final double MAX_LOAD = 0.5;
+
+	private volatile Slots slots;	// The current arrays, replaced as a whole when the table grows
+	private int size;				// The number of actions stored, guarded by this
+
+	/**
+	 * @param expectedSize The number of actions the table should hold before it first has to grow
+	 */
+	public ActionTable(int expectedSize) {
+		this.slots = new Slots(Integer.highestOneBit(Math.max(16, (int)(expectedSize / MAX_LOAD)) - 1) << 1);
+	}
+
+	/**
+	 * @param key The key of the action
+	 * @return The action stored under the key, or null if there is none
+	 */
+	public StripsAction get(long key) {
+		Slots current = slots;
+		int mask = current.keys.length() - 1;
+		for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+			long stored = current.keys.get(i);
+			if (stored == key) {
+				return current.actions.get(i);
+			}
+			if (stored == EMPTY) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stores an action under a key unless one is stored there already.
+	 *
+	 * @param key The key of the action
+	 * @param action The action to store
+	 * @return The action stored before under the key, or null if the given one was stored
+	 */
+	public synchronized StripsAction putIfAbsent(long key, StripsAction action) {
+		Slots current = slots;
+		int mask = current.keys.length() - 1;
+		int i = slot(key, mask);
+		for (long stored = current.keys.get(i); stored != EMPTY; stored = current.keys.get(i)) {
+			if (stored == key) {
+				return current.actions.get(i);
+			}
+			i = (i + 1) & mask;
+		}
+
+		// The action goes in first, so a lookup that sees the key sees the action
+		current.actions.set(i, action);
+		current.keys.set(i, key);
+		if (++size > current.keys.length() * MAX_LOAD) {
+			grow();
+		}
+		return null;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Doubles the capacity into new arrays and publishes them once every entry is in
+	private void grow() {
+		Slots old = slots;
+		Slots grown = new Slots(old.keys.length() * 2);
+		int mask = grown.keys.length() - 1;
+		for (int j = 0; j < old.keys.length(); j++) {
+			long key = old.keys.get(j);
+			if (key != EMPTY) {
+				int i = slot(key, mask);
+				while (grown.keys.get(i) != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				grown.actions.set(i, old.actions.get(j));
+				grown.keys.set(i, key);
+			}
+		}
+		slots = grown;
+	}
+
+	// Keys pack small fields into their low bits, so they are mixed before taking the slot
+	private static int slot(long key, int mask) {
+		long z = key * 0x9E3779B97F4A7C15L;
+		return (int)(z >>> 32 ^ z) & mask;
+	}
+
+	// The keys and actions of one capacity
+	private static class Slots {
+
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<StripsAction> actions;
+
+		Slots(int capacity) {
+			this.keys = new AtomicLongArray(capacity);
+			this.actions = new AtomicReferenceArray<StripsAction>(capacity);
+		}
+	}
+}
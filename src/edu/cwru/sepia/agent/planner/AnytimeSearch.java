@@ -0,0 +1,211 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Stack;
+
+/**
+ * Anytime Repairing A* (ARA*). Starts with a weighted A* search that orders states by cost + weight * heuristic,
+ * which finds a plan quickly but may cost up to weight times the optimum. The weight is then lowered step by step
+ * and the search continues from where it stopped instead of starting over, until the plan is shown to be optimal
+ * or the time budget, counted from the start of the search, runs out. The best plan found so far is returned, and
+ * its suboptimality bound is recorded in the SearchMetrics.
+ *
+ * The bound is the plan cost over the lowest cost + heuristic of any state still on the open or INCONS list, which
+ * holds with any admissible heuristic. The weight of a finished iteration is not used: it only bounds the plan when
+ * the heuristic is consistent, and the GameState heuristic is not, so even an iteration at weight 1 can leave cheaper
+ * plans behind in INCONS. Iterations at weight 1 go on until the bound reaches 1.
+ *
+ * Effort is reused as in the original algorithm: best costs are kept across iterations, and a state that gets
+ * cheaper after it was expanded in the current iteration is set aside (the INCONS list) and only reconsidered at the
+ * start of the next one, so each state is expanded at most once per iteration.
+ */
+public class AnytimeSearch {
+
+	private final long budgetMillis;	// Time allowed from the start of the search, unless the first plan takes longer
+	private final double initialWeight;	// The heuristic weight of the first iteration
+	private final double weightStep;	// How much the weight is lowered between iterations
+	private final SearchMetrics metrics;	// Counts the work done, across iterations
+
+	private double weight;				// The heuristic weight of the current iteration
+	private double bound;				// The suboptimality bound of the incumbent
+	private GameState incumbent;		// The cheapest goal found so far
+
+	/**
+	 * @param budgetMillis Milliseconds from the start of the search to stop improving the plan at
+	 * @param initialWeight The heuristic weight to start with, at least 1
+	 * @param weightStep The amount the weight is lowered after each plan
+	 * @param metrics The metrics to record the search in
+	 */
+	public AnytimeSearch(long budgetMillis, double initialWeight, double weightStep, SearchMetrics metrics) {
+		this.budgetMillis = budgetMillis;
+		this.initialWeight = Math.max(1.0, initialWeight);
+		this.weightStep = weightStep > 0 ? weightStep : 0.5;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Searches for progressively cheaper plans from the given state until the weight reaches 1 or the time budget
+	 * runs out. The first plan is always searched for, even past the budget, so there is something to return.
+	 *
+	 * @param startState The state which is being planned from
+	 * @return The cheapest plan found, or null if no plan exists
+	 */
+	public Stack<StripsAction> search(GameState startState) {
+		long start = System.currentTimeMillis();
+		long deadline = start + budgetMillis;
+
+		weight = initialWeight;
+		bound = Double.POSITIVE_INFINITY;
+		incumbent = null;
+		GameState reported = null;							// The last incumbent logged
+
+		ClosedTable best = new ClosedTable(1 << 16);		// The best cost of every state seen, across iterations
+		ClosedTable expanded = new ClosedTable(1 << 16);	// The states expanded in this iteration
+		List<GameState> inconsistent = new ArrayList<GameState>();
+		PriorityQueue<GameState> openList = new PriorityQueue<GameState>(100, byWeightedEstimate(weight));
+
+		best.offer(startState.getZobristHash(), startState.getCost());
+		openList.offer(startState);
+
+		while (true) {
+			long limit = incumbent == null ? Long.MAX_VALUE : deadline;
+			boolean finished = improvePath(openList, best, expanded, inconsistent, limit);
+			if (incumbent == null) {
+				System.out.println("ARA*: no plan found");
+				return null;
+			}
+
+			// Every plan cheaper than the incumbent goes through a state still on one of the lists. Once nothing is
+			// left the incumbent is optimal and the ratio goes to 0, hence the clamp at 1. With an inconsistent
+			// heuristic the lowest estimate can go down, but an earlier bound still holds for a cheaper incumbent.
+			bound = Math.min(bound, Math.max(1.0, incumbent.getCost() / lowerBound(openList, inconsistent, best)));
+			metrics.recordSuboptimalityBound(bound);
+			if (incumbent != reported) {
+				System.out.println("ARA*: plan cost " + incumbent.getCost() + ", weight " + weight + ", bound " + bound +
+						", after " + (System.currentTimeMillis() - start) + " ms");
+				reported = incumbent;
+			}
+
+			if (!finished || bound <= 1.0 || System.currentTimeMillis() >= deadline) {
+				break;
+			}
+
+			// Lower the weight, move the inconsistent states back to the open list and start a new iteration
+			weight = Math.max(1.0, weight - weightStep);
+			PriorityQueue<GameState> reordered = new PriorityQueue<GameState>(
+					Math.max(100, openList.size() + inconsistent.size()), byWeightedEstimate(weight));
+			for (GameState state : openList) {
+				if (!isStale(state, best)) {
+					reordered.offer(state);
+				}
+			}
+			for (GameState state : inconsistent) {
+				if (!isStale(state, best)) {
+					reordered.offer(state);
+				}
+			}
+			openList = reordered;
+			inconsistent.clear();
+			expanded.clear();
+		}
+
+		System.out.println("ARA*: returning plan cost " + incumbent.getCost() + ", bound " + bound);
+		return incumbent.getPlan();
+	}
+
+	// Expands states until no open state can lead to a plan cheaper than the incumbent. Returns false if the deadline
+	// passed first.
+	private boolean improvePath(PriorityQueue<GameState> openList, ClosedTable best, ClosedTable expanded,
+			List<GameState> inconsistent, long deadline) {
+		int count = 0;
+		while (!openList.isEmpty()) {
+			GameState state = openList.peek();
+			if (incumbent != null && incumbent.getCost() <= weightedEstimate(state, weight)) {
+				return true;
+			}
+			openList.poll();
+
+			// Skip stale entries, the state has since been reached more cheaply
+			if (isStale(state, best)) {
+				continue;
+			}
+
+			if (state.isGoal()) {
+				if (incumbent == null || state.getCost() < incumbent.getCost()) {
+					incumbent = state;
+				}
+				continue;
+			}
+
+			expanded.offer(state.getZobristHash(), state.getCost());
+			List<GameState> children = state.generateChildren();
+			metrics.recordExpansion();
+			metrics.recordGenerated(children.size());
+			for (GameState child : children) {
+				boolean seen = best.getCost(child.getZobristHash()) != Double.POSITIVE_INFINITY;
+				if (best.offer(child.getZobristHash(), child.getCost())) {
+					if (seen) {
+						metrics.recordReopening();
+					}
+					if (expanded.getCost(child.getZobristHash()) == Double.POSITIVE_INFINITY) {
+						openList.offer(child);
+					}
+					else {
+						inconsistent.add(child);
+					}
+				}
+				else {
+					metrics.recordDuplicate();
+				}
+			}
+			metrics.recordOpenListSize(openList.size() + inconsistent.size());
+
+			// Checking the clock on every expansion would cost more than the expansion
+			if (++count % 256 == 0 && System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The smallest unweighted cost + heuristic of any state that could still be expanded
+	private static double lowerBound(PriorityQueue<GameState> openList, List<GameState> inconsistent,
+			ClosedTable best) {
+		double lowest = Double.POSITIVE_INFINITY;
+		for (GameState state : openList) {
+			if (!isStale(state, best)) {
+				lowest = Math.min(lowest, state.getEstimate());
+			}
+		}
+		for (GameState state : inconsistent) {
+			if (!isStale(state, best)) {
+				lowest = Math.min(lowest, state.getEstimate());
+			}
+		}
+		return lowest;
+	}
+
+	private static boolean isStale(GameState state, ClosedTable best) {
+		return state.getCost() > best.getCost(state.getZobristHash());
+	}
+
+	private static double weightedEstimate(GameState state, double weight) {
+		return state.getCost() + weight * state.getHeuristic();
+	}
+
+	// Orders states by cost + weight * heuristic, preferring the higher cost on ties like GameState.compareTo
+	private static Comparator<GameState> byWeightedEstimate(final double weight) {
+		return new Comparator<GameState>() {
+			@Override
+			public int compare(GameState a, GameState b) {
+				int byEstimate = Double.compare(weightedEstimate(a, weight), weightedEstimate(b, weight));
+				return byEstimate != 0 ? byEstimate : a.compareTo(b);
+			}
+		};
+	}
+}
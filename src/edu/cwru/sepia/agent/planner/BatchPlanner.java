@@ -0,0 +1,187 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plans a batch of scenarios without running SEPIA, several at a time on a thread pool. Each job only builds the start
+ * state and searches, so a sweep over maps and goals takes as long as the searches do instead of whole episodes.
+ *
+ * Usage: BatchPlanner [pool=N] [option=value ...] job ...
+ *
+ * A job is either a configuration file, planned with the arguments it gives the PlannerAgent, or
+ * map,gold,wood,buildPeasants where map is a map file or a state saved to saves/*.SRTSsav. The options are the
+ * PlannerAgent ones and apply to every job, overriding any the configuration gives; search defaults to A* as usual.
+ * pool is the number of jobs run at once and defaults to the number of processors.
+ *
+ * The plan and metrics of each job are written to saves/batch/ as name-gold-wood-buildPeasants.txt and .json, and a
+ * line per job is printed once all of them are done.
+ */
+public class BatchPlanner {
+
+	private final int threads;			// The number of jobs planned at once
+	private final List<String> options;	// The PlannerAgent options given to every job
+	private final File outputDir;		// Where plans and metrics are written
+
+	/**
+	 * @param threads The number of jobs to plan at once
+	 * @param options PlannerAgent options, as name=value, for every job
+	 * @param outputDir The directory to write plans and metrics to
+	 */
+	public BatchPlanner(int threads, List<String> options, File outputDir) {
+		this.threads = Math.max(1, threads);
+		this.options = new ArrayList<String>(options);
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Plans every job, at most threads of them at a time.
+	 *
+	 * @param jobs The jobs, in the form described on the class
+	 * @return The result of each job, in the order given
+	 */
+	public List<Result> run(List<String> jobs) throws InterruptedException {
+		outputDir.mkdirs();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> pending = new ArrayList<Future<Result>>();
+			for (final String job : jobs) {
+				pending.add(pool.submit(() -> plan(job)));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (int i = 0; i < jobs.size(); i++) {
+				try {
+					results.add(pending.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new Result(jobs.get(i), null, null, e.getCause()));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Reads a job's scenario, plans it and writes out the plan and metrics
+	private Result plan(String job) throws IOException {
+		Scenario scenario = readJob(job);
+
+		// The options given here come after the configuration's own, so they override them
+		List<String> arguments = new ArrayList<String>(Arrays.asList(scenario.getArguments()));
+		arguments.addAll(options);
+		PlannerAgent agent = new PlannerAgent(scenario.getPlayernum(), arguments.toArray(new String[arguments.size()]));
+
+		Stack<StripsAction> plan = agent.search(scenario.createInitialState());
+
+		String name = scenario.getName() + "-" + scenario.getRequiredGold() + "-" + scenario.getRequiredWood() + "-" +
+				scenario.isBuildPeasants();
+		if (plan != null) {
+			PlannerAgent.writePlan(plan, new File(outputDir, name + ".txt"));
+		}
+		PlannerAgent.writeMetrics(agent.getMetrics(), new File(outputDir, name + ".json"));
+		return new Result(job, plan, agent.getMetrics(), null);
+	}
+
+	private static Scenario readJob(String job) throws IOException {
+		String[] parts = job.split(",");
+		if (parts.length == 1) {
+			return Scenario.load(job);
+		}
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Expected a configuration file or map,gold,wood,buildPeasants: " + job);
+		}
+		// The PlannerAgent takes the wood amount before the gold
+		return Scenario.fromMap(parts[0].trim(), 0, parts[2].trim(), parts[1].trim(), parts[3].trim());
+	}
+
+	/**
+	 * The outcome of one job.
+	 */
+	public static class Result {
+
+		private final String job;
+		private final Stack<StripsAction> plan;	// The plan, null if none was found
+		private final SearchMetrics metrics;	// The search metrics, null if the job failed before searching
+		private final Throwable failure;		// The error the job failed with, if any
+
+		Result(String job, Stack<StripsAction> plan, SearchMetrics metrics, Throwable failure) {
+			this.job = job;
+			this.plan = plan;
+			this.metrics = metrics;
+			this.failure = failure;
+		}
+
+		public String getJob() {
+			return job;
+		}
+
+		public Stack<StripsAction> getPlan() {
+			return plan;
+		}
+
+		public SearchMetrics getMetrics() {
+			return metrics;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			if (failure != null) {
+				return job + ": failed, " + failure;
+			}
+			if (plan == null) {
+				return job + ": no plan, " + metrics.getNodesExpanded() + " expanded in " +
+						metrics.getElapsedMillis() + " ms";
+			}
+			return job + ": " + plan.size() + " actions, " + metrics.getNodesExpanded() + " expanded in " +
+					metrics.getElapsedMillis() + " ms";
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> options = new ArrayList<String>();
+		List<String> jobs = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("pool=") && jobs.isEmpty()) {
+				threads = Integer.parseInt(arg.substring("pool=".length()));
+			}
+			else if (arg.indexOf('=') >= 0 && jobs.isEmpty()) {
+				options.add(arg);
+			}
+			else {
+				jobs.add(arg);
+			}
+		}
+		if (jobs.isEmpty()) {
+			System.err.println("Usage: BatchPlanner [pool=N] [option=value ...] job ...");
+			System.err.println("A job is a configuration file or map,gold,wood,buildPeasants");
+			System.exit(1);
+		}
+
+		long start = System.currentTimeMillis();
+		List<Result> results = new BatchPlanner(threads, options, new File("saves", "batch")).run(jobs);
+		boolean failed = false;
+		for (Result result : results) {
+			System.out.println(result);
+			failed |= result.getPlan() == null;
+		}
+		System.out.println(results.size() + " jobs in " + (System.currentTimeMillis() - start) + " ms");
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,130 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.Arrays;
+
+/**
+ * An open list that files states into one bucket per integer estimate, and within it into one sub-bucket per integer
+ * cost. Push is O(1) and pop is O(1) amortized, and no comparisons are made.
+ *
+ * Every action has an integer cost, so the cost of any plan is an integer. A state's key is its cost plus the
+ * heuristic rounded up, which is still a lower bound on the cost of a plan through it whenever the heuristic is.
+ * Within a key, the state with the highest cost is popped first, the same tie-break GameState.compareTo gives the
+ * heap, so both lists expand states in nearly the same order. States with the same key and cost are popped last in,
+ * first out.
+ */
+public class BucketOpenList implements OpenList {
+
+	private Bucket[] buckets;	// The states, indexed by key
+	private int minKey;			// No bucket below this key holds a state
+	private int size;			// The total number of states
+
+	public BucketOpenList(int initialKeys) {
+		this.buckets = new Bucket[Math.max(1, initialKeys)];
+		this.minKey = buckets.length;
+		this.size = 0;
+	}
+
+	/**
+	 * @return The bucket a state is filed under
+	 */
+	public static int keyOf(GameState state) {
+		return Math.max(0, (int)Math.round(state.getCost()) + (int)Math.ceil(state.getHeuristic()));
+	}
+
+	@Override
+	public void offer(GameState state) {
+		int key = keyOf(state);
+		if (key >= buckets.length) {
+			buckets = Arrays.copyOf(buckets, Math.max(key + 1, buckets.length * 2));
+		}
+
+		Bucket bucket = buckets[key];
+		if (bucket == null) {
+			bucket = new Bucket(key + 1);
+			buckets[key] = bucket;
+		}
+		bucket.offer(state);
+
+		// A heuristic that is not consistent can file a child below its parent
+		if (key < minKey) {
+			minKey = key;
+		}
+		size++;
+	}
+
+	@Override
+	public GameState poll() {
+		if (size == 0) {
+			return null;
+		}
+		while (buckets[minKey] == null || buckets[minKey].size == 0) {
+			minKey++;
+		}
+		size--;
+		return buckets[minKey].poll();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// The states of one key, indexed by cost
+	private static class Bucket {
+
+		private GameState[][] byCost;	// The states, indexed by cost
+		private int[] sizes;			// The number of states of each cost
+		private int maxCost;			// No sub-bucket above this cost holds a state
+		private int size;				// The number of states in the bucket
+
+		Bucket(int costs) {
+			this.byCost = new GameState[costs][];
+			this.sizes = new int[costs];
+			this.maxCost = -1;
+			this.size = 0;
+		}
+
+		void offer(GameState state) {
+			// The heuristic is never negative, so the cost is at most the key, but the array grows to be safe
+			int cost = Math.max(0, (int)Math.round(state.getCost()));
+			if (cost >= byCost.length) {
+				int capacity = Math.max(cost + 1, byCost.length * 2);
+				byCost = Arrays.copyOf(byCost, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+			}
+
+			GameState[] states = byCost[cost];
+			if (states == null) {
+				states = new GameState[4];
+				byCost[cost] = states;
+			}
+			else if (sizes[cost] == states.length) {
+				states = Arrays.copyOf(states, states.length * 2);
+				byCost[cost] = states;
+			}
+			states[sizes[cost]++] = state;
+
+			if (cost > maxCost) {
+				maxCost = cost;
+			}
+			size++;
+		}
+
+		GameState poll() {
+			while (sizes[maxCost] == 0) {
+				maxCost--;
+			}
+
+			GameState[] states = byCost[maxCost];
+			GameState state = states[--sizes[maxCost]];
+			states[sizes[maxCost]] = null;
+			size--;
+			return state;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.Arrays;
+
+/**
+ * The closed list for the A* search. Maps a state's 64 bit Zobrist hash to the lowest cost it has been reached with.
+ *
+ * Uses open addressing with linear probing over parallel primitive arrays so that no objects are allocated per
+ * state. Distinct states are assumed to have distinct hashes, which holds with overwhelming probability for a
+ * 64 bit Zobrist hash. The key 0 marks an empty slot, so a state that hashes to 0 is stored under EMPTY_SUBSTITUTE.
+ */
+public class ClosedTable {
+
+	private static final long EMPTY = 0L;
+	private static final long EMPTY_SUBSTITUTE = 0x9E3779B97F4A7C15L;
+	private static final double MAX_LOAD = 0.5;
+
+	private long[] keys;		// The state hashes, EMPTY for unused slots
+	private double[] costs;		// The best cost each state has been reached with
+	private int size;			// The number of states stored
+
+	/**
+	 * @param expectedSize The number of states the table should hold before it first has to grow
+	 */
+	public ClosedTable(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int)(expectedSize / MAX_LOAD)) - 1) << 1;
+		this.keys = new long[capacity];
+		this.costs = new double[capacity];
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the best known cost for a state.
+	 *
+	 * @param hash The Zobrist hash of the state
+	 * @return The lowest cost the state was recorded with, or positive infinity if it has not been seen
+	 */
+	public double getCost(long hash) {
+		long key = hash == EMPTY ? EMPTY_SUBSTITUTE : hash;
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return costs[i];
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Records a cost for a state if it is lower than the best one known.
+	 *
+	 * @param hash The Zobrist hash of the state
+	 * @param cost The cost the state was just reached with
+	 * @return True if the cost was recorded, false if the state was already reached at an equal or lower cost
+	 */
+	public boolean offer(long hash, double cost) {
+		long key = hash == EMPTY ? EMPTY_SUBSTITUTE : hash;
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				if (cost < costs[i]) {
+					costs[i] = cost;
+					return true;
+				}
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		costs[i] = cost;
+		if (++size > keys.length * MAX_LOAD) {
+			grow();
+		}
+		return true;
+	}
+
+	// Doubles the capacity and reinserts every entry
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldCosts = costs;
+		keys = new long[oldKeys.length * 2];
+		costs = new double[oldCosts.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slot(oldKeys[j], mask);
+				while (keys[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				costs[i] = oldCosts[j];
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	// The Zobrist hash is already uniformly distributed, so folding its halves is enough
+	private static int slot(long key, int mask) {
+		return (int)(key >>> 32 ^ key) & mask;
+	}
+}
@@ -0,0 +1,171 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.Arrays;
+
+/**
+ * Exact travel distances between the cells peasants can stand on during a plan, built once per map.
+ *
+ * Peasants only ever stop next to a resource or the town hall (or where they started), so a breadth first search is
+ * run from each of those free cells over the occupancy grid of the initial state, where resources and buildings
+ * block movement. The results are kept in one short[] table with a row per source cell. Moves are 8-connected and
+ * cost one per step, as in SEPIA.
+ */
+public class DistanceOracle {
+
+	public static final int UNREACHABLE = Short.MAX_VALUE;
+
+	private static final int[] DX = { -1, 0, 1, -1, 1, -1, 0, 1 };
+	private static final int[] DY = { -1, -1, -1, 0, 0, 1, 1, 1 };
+
+	private final int xExtent;
+	private final int yExtent;
+	private final int cellCount;
+	private final int[] sourceRow;		// The table row of each cell, -1 for cells that are not sources
+	private final short[] distances;	// One row of cellCount distances per source cell
+	private final int[][] standCells;	// The free cells next to each target
+
+	/**
+	 * Runs the searches for a map.
+	 *
+	 * @param xExtent The horizontal extent of the map
+	 * @param yExtent The vertical extent of the map
+	 * @param blocked True for each cell (y * xExtent + x) a peasant can not walk through
+	 * @param targetCells The cells of the resources and buildings peasants move next to
+	 * @param startCells The cells peasants start on
+	 */
+	public DistanceOracle(int xExtent, int yExtent, boolean[] blocked, int[] targetCells, int[] startCells) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.cellCount = xExtent * yExtent;
+		this.sourceRow = new int[cellCount];
+		Arrays.fill(sourceRow, -1);
+
+		// Every free cell next to a target, and every start cell, gets a row
+		int rows = 0;
+		this.standCells = new int[targetCells.length][];
+		for (int t = 0; t < targetCells.length; t++) {
+			int[] adjacent = new int[DX.length];
+			int count = 0;
+			int tx = targetCells[t] % xExtent;
+			int ty = targetCells[t] / xExtent;
+			for (int d = 0; d < DX.length; d++) {
+				int x = tx + DX[d];
+				int y = ty + DY[d];
+				if (x >= 0 && y >= 0 && x < xExtent && y < yExtent && !blocked[y * xExtent + x]) {
+					int cell = y * xExtent + x;
+					adjacent[count++] = cell;
+					if (sourceRow[cell] < 0) {
+						sourceRow[cell] = rows++;
+					}
+				}
+			}
+			standCells[t] = Arrays.copyOf(adjacent, count);
+		}
+		for (int cell : startCells) {
+			if (sourceRow[cell] < 0) {
+				sourceRow[cell] = rows++;
+			}
+		}
+
+		this.distances = new short[rows * cellCount];
+		int[] queue = new int[cellCount];
+		for (int cell = 0; cell < cellCount; cell++) {
+			if (sourceRow[cell] >= 0) {
+				search(cell, sourceRow[cell] * cellCount, blocked, queue);
+			}
+		}
+	}
+
+	// Fills one row with the step counts from a source cell
+	private void search(int source, int rowStart, boolean[] blocked, int[] queue) {
+		Arrays.fill(distances, rowStart, rowStart + cellCount, (short)UNREACHABLE);
+		distances[rowStart + source] = 0;
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = source;
+		while (head < tail) {
+			int cell = queue[head++];
+			int x = cell % xExtent;
+			int y = cell / xExtent;
+			short next = (short)(distances[rowStart + cell] + 1);
+			for (int d = 0; d < DX.length; d++) {
+				int nx = x + DX[d];
+				int ny = y + DY[d];
+				if (nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+					continue;
+				}
+				int neighbor = ny * xExtent + nx;
+				if (!blocked[neighbor] && distances[rowStart + neighbor] == UNREACHABLE) {
+					distances[rowStart + neighbor] = next;
+					queue[tail++] = neighbor;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The cells peasants can stop on, which the distances are exact from
+	 */
+	public int[] getSourceCells() {
+		int[] cells = new int[distances.length / cellCount];
+		for (int cell = 0; cell < cellCount; cell++) {
+			if (sourceRow[cell] >= 0) {
+				cells[sourceRow[cell]] = cell;
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * The number of steps between two cells. Exact when either cell is one peasants stop on, otherwise the Chebyshev
+	 * distance is used as an estimate.
+	 *
+	 * @return The number of steps, or UNREACHABLE if there is no path
+	 */
+	public int distance(int fromCell, int toCell) {
+		if (sourceRow[fromCell] >= 0) {
+			return distances[sourceRow[fromCell] * cellCount + toCell];
+		}
+		if (sourceRow[toCell] >= 0) {
+			return distances[sourceRow[toCell] * cellCount + fromCell];
+		}
+		int xDiff = Math.abs(fromCell % xExtent - toCell % xExtent);
+		int yDiff = Math.abs(fromCell / xExtent - toCell / xExtent);
+		return Math.max(xDiff, yDiff);
+	}
+
+	/**
+	 * Picks the free cell next to a target that is fewest steps from a cell. Ties go to the first cell found.
+	 *
+	 * @param fromCell The cell the peasant is on
+	 * @param target The index of the target, in the order the targets were given
+	 * @return The cell to stand on, or -1 if no cell next to the target can be reached
+	 */
+	public int nearestStandCell(int fromCell, int target) {
+		int best = -1;
+		int bestDistance = UNREACHABLE;
+		for (int cell : standCells[target]) {
+			int distance = distance(fromCell, cell);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = cell;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The free cells next to a target
+	 */
+	public int[] getStandCells(int target) {
+		return standCells[target];
+	}
+
+	/**
+	 * @return The number of steps from a cell to the nearest free cell next to a target, or UNREACHABLE
+	 */
+	public int distanceToTarget(int fromCell, int target) {
+		int cell = nearestStandCell(fromCell, target);
+		return cell < 0 ? UNREACHABLE : distance(fromCell, cell);
+	}
+}
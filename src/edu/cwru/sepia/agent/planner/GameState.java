@@ -3,16 +3,24 @@ package edu.cwru.sepia.agent.planner;
 import edu.cwru.sepia.agent.planner.actions.ActionFactory;
 import edu.cwru.sepia.agent.planner.actions.StripsAction;
 import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
-import edu.cwru.sepia.environment.model.state.ResourceNode.Type;
+import edu.cwru.sepia.environment.model.state.ResourceType;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 import edu.cwru.sepia.util.Direction;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class is used to represent the state of the game after applying one of the avaiable actions. It will also
@@ -34,36 +42,40 @@ import java.util.Stack;
 public class GameState implements Comparable<GameState> {
 	
 	public enum Resource { WOOD, GOLD, NONE }	// Types of resources the peasant can be holding
-	private Map<String, Object[]> goldSources;	// A map of gold resource info, keyed by their coordinates
-	private Map<String, Object[]> woodSources;	// A map of wood resource info, keyed by their coordinates
-	private Map<Integer, Object[]> peasants;	// A map of peasant unit info, keyed by their IDs
-	//private Resource holdType;					// The type of resource the peasant is currently holding
+	public enum MacroMode { NONE, MIXED, ONLY }	// Whether harvest trips are planned as single actions
+	
+	private MapLayout layout;					// The parts of the map shared by every state
+	private int[] values;						// The packed values that change between states
+	private long zobrist;						// The Zobrist hash of the packed values
 
 	private double cost;						// The cost of the plan thus far;
+	private double heuristic;					// The estimated cost to a goal, computed once per state
+	private double estimate;					// The total estimated cost, cost + heuristic
 	private GameState parentState;				// The predecessor state before the last action
-	private List<StripsAction> actionList;		// The collection of actions that make up the plan thus far
 	private List<StripsAction> lastActions;		// The actions taken to result in this state
 	
-	private Position townHallPosition;			// The position of the town hall unit
-	//private Position peasantPosition;			// The position of the peasant unit
-	//private int peasantID;						// The id of the peasant unit
-	private int townHallID;						// The id of the town hall
-	private int currentFood;					// The count of food available
+	// Layout of the packed values array: the totals, then one amount per resource, then one record per peasant
+	private static final int GOLD_INDEX = 0;
+	private static final int WOOD_INDEX = 1;
+	private static final int FOOD_INDEX = 2;
+	private static final int PEASANT_COUNT_INDEX = 3;
+	private static final int HEADER_SIZE = 4;
 	
-	private boolean buildPeasant;				// The build peasant condition
+	// Layout of a peasant record: its id, its cell and its cargo (amount << CARGO_SHIFT | type)
+	private static final int ID_OFFSET = 0;
+	private static final int CELL_OFFSET = 1;
+	private static final int CARGO_OFFSET = 2;
+	private static final int PEASANT_SIZE = 3;
+	private static final int CARGO_SHIFT = 2;
+	private static final int CARGO_TYPE_MASK = (1 << CARGO_SHIFT) - 1;
+	private static final Resource[] RESOURCES = Resource.values();
 	
-	private int xExtent;						// The horizontal extent of the map
-	private int yExtent;						// The vertical extent of the map
-	private int requiredGold;					// The required amount of gold
-	private int requiredWood;					// The required amount of wood
-	private int currentGold;					// The current total of gold
-	private int currentWood;					// The current total of wood
-	//private int holdingCount;					// The amount the peasant is holding
-
-	private static final int ID_INDEX = 0;
-	private static final int POS_INDEX = 1;
-	private static final int AMT_INDEX = 2;
-	private static final int TYPE_INDEX = 3;
+	// The heuristic tries every option of this many peasants, the ones with the cheapest loads
+	private static final int MAX_HEURISTIC_PEASANTS = 6;
+	// The gold a peasant costs to build
+	private static final int PEASANT_COST = ActionFactory.BuildPeasantAction.GOLD_COST;
+	// Stands in for an infinite cost in integer arithmetic, small enough that sums of a few can not overflow
+	private static final int UNREACHABLE_COST = 1 << 24;
 	
     /**
      * Construct a GameState from a stateview object. This is used to construct the initial search node. All other
@@ -77,192 +89,264 @@ public class GameState implements Comparable<GameState> {
      */
     public GameState(State.StateView state, int playernum, int requiredGold, int requiredWood, boolean buildPeasants) {
     	
-    	// Copy build peasants
-    	this.buildPeasant = buildPeasants;
-    	
     	// Empty parent state
     	this.parentState = null;
     	this.cost = 0;
     	
-    	// Get resource positions from state view
-    	this.goldSources = new HashMap<String, Object[]>();
-    	this.woodSources = new HashMap<String, Object[]>();
-    	List<ResourceView> resourceViews = state.getAllResourceNodes();
-    	for (int i = 0; i < resourceViews.size(); i++) {
-    		ResourceView resource = resourceViews.get(i);
-			Position position = new Position(resource.getXPosition(), resource.getYPosition());
-			
-			// Determine if the resource is gold or wood
-    		if (resource.getType() == Type.GOLD_MINE) {
-    			Object[] resourceInfo = {resource.getID(), position, resource.getAmountRemaining()};
-    			goldSources.put(position.keyString(), resourceInfo);
+    	// The plan is initially empty
+    	this.lastActions = new ArrayList<StripsAction>();
+    	
+    	// Get info about the units in the world
+    	List<UnitView> peasantUnits = new ArrayList<UnitView>();
+    	Position townHallPosition = null;
+    	int townHallID = -1;
+    	int currentFood = 0;
+    	for (UnitView unit : state.getUnits(playernum)) {
+    		if (unit.getTemplateView().getName().equals("Peasant")) {
+    			peasantUnits.add(unit);
     		}
-    		else if (resource.getType() == Type.TREE) {
-    			Object[] resourceInfo = {resource.getID(), position, resource.getAmountRemaining()};
-    			woodSources.put(position.keyString(), resourceInfo);
+    		else {	// This unit is the town hall
+    			townHallPosition = new Position(unit.getXPosition(), unit.getYPosition());
+    			townHallID = unit.getID();
+    			currentFood = unit.getTemplateView().getFoodProvided() - 1;
     		}
     	}
     	
-    	// The peasant initially is empty-handed
-    	//this.holdType = Resource.NONE;
-    	//this.holdingCount = 0;
+    	// Get the static map info from the state view
+    	this.layout = new MapLayout(state, townHallPosition, townHallID, requiredGold, requiredWood, buildPeasants);
     	
-    	// The plan is initially empty
-    	this.actionList = new ArrayList<StripsAction>();
+    	// Set the initial resource counts, the resource amounts and the empty-handed peasants
+    	int resourceCount = layout.getResourceCount();
+    	this.values = new int[HEADER_SIZE + resourceCount + peasantUnits.size() * PEASANT_SIZE];
+    	values[GOLD_INDEX] = 0;
+    	values[WOOD_INDEX] = 0;
+    	values[FOOD_INDEX] = currentFood;
+    	values[PEASANT_COUNT_INDEX] = peasantUnits.size();
+    	for (int i = 0; i < resourceCount; i++) {
+    		values[HEADER_SIZE + i] = layout.getInitialAmount(i);
+    	}
+    	for (int i = 0; i < peasantUnits.size(); i++) {
+    		UnitView unit = peasantUnits.get(i);
+    		int offset = peasantOffsetAt(i);
+    		values[offset + ID_OFFSET] = unit.getID();
+    		values[offset + CELL_OFFSET] = layout.cellOf(unit.getXPosition(), unit.getYPosition());
+    		values[offset + CARGO_OFFSET] = packCargo(0, Resource.NONE);
+    	}
+    	
+    	// Hash every packed value once, later changes are hashed incrementally
+    	this.zobrist = 0;
+    	for (int i = 0; i < values.length; i++) {
+    		zobrist ^= zobristKey(i, values[i]);
+    	}
+    	
+    	this.heuristic = timedHeuristic();
+    	this.estimate = cost + heuristic;
+    }
+    
+    /**
+     * Construct a GameState for the game as it is partway through a plan, on the layout the plan was made with so it
+     * can be compared to the planned states. Resources that have run out and left the map are given an amount of 0.
+     *
+     * @param layout The layout of the state the plan was made from
+     * @param state The current stateview
+     * @param playernum The player number of agent that is executing the plan
+     * @param planIDs The id the plan uses for each peasant, by SEPIA id. Peasants not in the map keep their own id.
+     */
+    public GameState(MapLayout layout, State.StateView state, int playernum, Map<Integer, Integer> planIDs) {
+    	this.parentState = null;
+    	this.cost = 0;
     	this.lastActions = new ArrayList<StripsAction>();
+    	this.layout = layout;
     	
-    	// Get info about the units in the world
-    	peasants = new HashMap<Integer, Object[]>();
-    	List<UnitView> units = state.getUnits(playernum);
-    	for (UnitView unit : units) {
-    		Position position = new Position(unit.getXPosition(), unit.getYPosition());
+    	// Peasants the plan started with come first, in the order the stateview lists them, then built peasants in the
+    	// order they were built, which is how the planned states hold them
+    	List<UnitView> peasantUnits = new ArrayList<UnitView>();
+    	List<UnitView> builtUnits = new ArrayList<UnitView>();
+    	int foodProvided = 0;
+    	for (UnitView unit : state.getUnits(playernum)) {
     		if (unit.getTemplateView().getName().equals("Peasant")) {
-    			// Assemble peasant info array
-    	    	//this.peasantID = unit.getID();
-    	    	//this.peasantPosition = position;
-    	    	Object[] info = new Object[]{ unit.getID(), position, 0, Resource.NONE };
-    	    	peasants.put(unit.getID(), info);
+    			(planID(unit, planIDs) < 0 ? builtUnits : peasantUnits).add(unit);
     		}
-    		else {	// This unit is the town hall
-    			this.townHallPosition = position;
-    			this.townHallID = unit.getID();
-    			this.currentFood = unit.getTemplateView().getFoodProvided() - 1;
+    		else if (unit.getID() == layout.getTownHallID()) {
+    			foodProvided = unit.getTemplateView().getFoodProvided();
     		}
     	}
+    	builtUnits.sort((a, b) -> Integer.compare(planID(b, planIDs), planID(a, planIDs)));
+    	peasantUnits.addAll(builtUnits);
+    	
+    	int resourceCount = layout.getResourceCount();
+    	this.values = new int[HEADER_SIZE + resourceCount + peasantUnits.size() * PEASANT_SIZE];
+    	values[GOLD_INDEX] = state.getResourceAmount(playernum, ResourceType.GOLD);
+    	values[WOOD_INDEX] = state.getResourceAmount(playernum, ResourceType.WOOD);
+    	values[FOOD_INDEX] = foodProvided - peasantUnits.size();
+    	values[PEASANT_COUNT_INDEX] = peasantUnits.size();
+    	for (int i = 0; i < resourceCount; i++) {
+    		ResourceView resource = state.getResourceNode(layout.getResourceID(i));
+    		values[HEADER_SIZE + i] = resource == null ? 0 : resource.getAmountRemaining();
+    	}
+    	for (int i = 0; i < peasantUnits.size(); i++) {
+    		UnitView unit = peasantUnits.get(i);
+    		int offset = peasantOffsetAt(i);
+    		Resource cargo = unit.getCargoType() == ResourceType.GOLD ? Resource.GOLD :
+    				unit.getCargoType() == ResourceType.WOOD ? Resource.WOOD : Resource.NONE;
+    		values[offset + ID_OFFSET] = planID(unit, planIDs);
+    		values[offset + CELL_OFFSET] = layout.cellOf(unit.getXPosition(), unit.getYPosition());
+    		values[offset + CARGO_OFFSET] = cargo == Resource.NONE ?
+    				packCargo(0, Resource.NONE) : packCargo(unit.getCargoAmount(), cargo);
+    	}
     	
-    	// Get the extent of the map from the state view
-    	this.xExtent = state.getXExtent();
-    	this.yExtent = state.getYExtent();
+    	this.zobrist = 0;
+    	for (int i = 0; i < values.length; i++) {
+    		zobrist ^= zobristKey(i, values[i]);
+    	}
     	
-    	// Set the initial resource counts/goals
-    	this.requiredGold = requiredGold;
-    	this.requiredWood = requiredWood;
-    	this.currentGold = 0;
-    	this.currentWood = 0;
+    	this.heuristic = timedHeuristic();
+    	this.estimate = cost + heuristic;
+    }
+    
+    private static int planID(UnitView unit, Map<Integer, Integer> planIDs) {
+    	Integer planID = planIDs.get(unit.getID());
+    	return planID == null ? unit.getID() : planID;
     }
     
     public GameState(GameState state, List<StripsAction> actions) {
+    	this.values = state.values.clone();
+    	takeActions(state, actions);
+    }
+    
+    /**
+     * Turns this state into the child a joint action leads to from another state, reusing its own packed values where
+     * they fit. Lets a search work out the f-value of a child it may not keep without allocating a state for it, see
+     * PartialExpansionSearch. The state must be one made for that purpose and not held on to by anything else.
+     *
+     * @param state The parent state
+     * @param actions The joint action taken from the parent
+     */
+    void resetToChild(GameState state, List<StripsAction> actions) {
+    	if (values.length == state.values.length) {
+    		System.arraycopy(state.values, 0, values, 0, values.length);
+    	}
+    	else {
+    		values = state.values.clone();
+    	}
+    	takeActions(state, actions);
+    }
+    
+    // Makes this state the child of a joint action from a state, its values already being a copy of the parent's
+    private void takeActions(GameState state, List<StripsAction> actions) {
     	// Set parent state
     	this.parentState = state;
     	
-    	// Copy state resulting from action
-    	//this.holdType = parentState.holdType;
-    	//this.holdingCount = parentState.holdingCount;
-    	this.goldSources = new HashMap<String, Object[]>(parentState.goldSources);
-    	this.woodSources = new HashMap<String, Object[]>(parentState.woodSources);
-    	this.peasants = new HashMap<Integer, Object[]>();
-    	
-    	// Copy values from peasant info arrays to avoid lingering references
-    	for (Object[] parent : parentState.peasants.values()) {
-    		// Get id
-    		int id = (Integer)parent[ID_INDEX];
-    		
-    		// Get position
-    		Position pos = (Position)parent[POS_INDEX];
-    		pos = new Position(pos.x, pos.y);
-    		
-    		// Get holding count and type
-    		int holdingCount = (Integer)parent[AMT_INDEX];
-    		Resource holdType = (Resource)parent[TYPE_INDEX];
-    		
-    		// Assemble and store
-    		Object[] peasant = new Object[] { id, pos, holdingCount, holdType };
-    		this.peasants.put(id, peasant);
-    	}
-    	
-    	this.xExtent = parentState.getXExtent();
-    	this.yExtent = parentState.getYExtent();
-    	this.requiredGold = parentState.requiredGold;
-    	this.requiredWood = parentState.requiredWood;
-    	this.currentGold = parentState.currentGold;
-    	this.currentWood = parentState.currentWood;
-    	this.currentFood = parentState.currentFood;
-    	
-    	//this.peasantID = parentState.peasantID;
-    	this.townHallID = parentState.townHallID;
-    	//this.peasantPosition = new Position(parentState.peasantPosition.x, parentState.peasantPosition.y);
-    	this.townHallPosition = new Position(parentState.townHallPosition.x, parentState.townHallPosition.y);
+    	// Share the map and edit the copied packed values in place
+    	this.layout = parentState.layout;
+    	this.zobrist = parentState.zobrist;
     	
-    	// Plan/cost is previous state + last actions
+    	// The actions are taken at the same time, so they cost as much as the longest of them
     	this.lastActions = actions;
-    	this.cost = parentState.cost;
-    	this.actionList = new ArrayList<StripsAction>(parentState.getActionList());
+    	double longest = 0;
     	for (int i = 0; i < lastActions.size(); i++) {
-        	this.cost += lastActions.get(i).getCost(parentState);
-        	this.actionList.add(lastActions.get(i));
+    		longest = Math.max(longest, lastActions.get(i).getCost(parentState));
         	this.lastActions.get(i).apply(this);
     	}
+    	this.cost = parentState.cost + longest;
+    	
+    	// Evaluate the heuristic once, now that the state is final
+    	this.heuristic = timedHeuristic();
+    	this.estimate = cost + heuristic;
+    }
+    
+    public GameState getParentState() {
+    	return parentState;
+    }
+    
+    public List<StripsAction> getLastActions() {
+    	return lastActions;
     }
     
+    /**
+     * Rebuilds the plan thus far by walking the parent pointers. Only the last actions are stored per state, so this
+     * takes time linear in the plan length and should not be called during the search.
+     *
+     * @return The actions that make up the plan to this state, in order
+     */
     public List<StripsAction> getActionList() {
-    	return actionList;
+    	return new ArrayList<StripsAction>(getPlan());
     }
     
     public String getResourceLevels() {
-    	Object[] peasant = peasants.get(1);
-    	return "Wood: " + (currentWood) + 
-    			" Gold: " + (currentGold) + 
-    			" Holding: " + peasant[AMT_INDEX];//holdingCount;
+    	return "Wood: " + (getCurrentWood()) + 
+    			" Gold: " + (getCurrentGold()) + 
+    			" Holding: " + cargoAmount(values[peasantOffsetAt(0) + CARGO_OFFSET]);
+    }
+    
+    public MapLayout getLayout() {
+    	return layout;
     }
     
     public Position getTownHallPosition() {
-    	return townHallPosition;
+    	return layout.getTownHallPosition();
     }
 
     public int getTownHallID() {
-    	return townHallID;
+    	return layout.getTownHallID();
     }
     
     public Position getPeasantPosition(int id) {
-    	Object[] peasant = peasants.get(id);
-    	return (Position)peasant[POS_INDEX];
+    	return layout.positionOf(values[peasantOffset(id) + CELL_OFFSET]);
     }
     
-//    public Position getPeasantPosition() {
-//    	return peasantPosition;
-//    }
-    
     public void setPeasantPosition(int id, Position newPosition) {
-    	Object[] peasant = peasants.remove(id);
-    	peasant[POS_INDEX] = newPosition;
-    	peasants.put(id, peasant);
+    	setValue(peasantOffset(id) + CELL_OFFSET, layout.cellOf(newPosition));
     }
     
-//    public void setPeasantPosition(Position newPosition) {
-//    	peasantPosition = newPosition;
-//    }
-    
-//    public int getPeasantID() {
-//    	return peasantID;
-//    }
-    
     public int getXExtent() {
-    	return xExtent;
+    	return layout.getXExtent();
     }
     
     public int getYExtent() {
-    	return yExtent;
+    	return layout.getYExtent();
     }
     
     public int getCurrentGold() {
-    	return currentGold;
+    	return values[GOLD_INDEX];
+    }
+    
+    public int getCurrentWood() {
+    	return values[WOOD_INDEX];
     }
     
     public int getCurrentFood() {
-    	return currentFood;
+    	return values[FOOD_INDEX];
+    }
+    
+    public int getPeasantCount() {
+    	return values[PEASANT_COUNT_INDEX];
+    }
+    
+    /**
+     * @param index The index of the peasant record, from 0 to getPeasantCount() - 1
+     * @return The id of the peasant stored at that index
+     */
+    public int getPeasantIDAt(int index) {
+    	return values[peasantOffsetAt(index) + ID_OFFSET];
     }
     
+    public int getResourceAmount(int resource) {
+    	return values[HEADER_SIZE + resource];
+    }
     
     /**
-     * 
+     * Walks back through the parent states once, collecting each state's last actions.
+     *
      * @return The stack of StripsAction objects that make the plan to get to this state.
      */
     public Stack<StripsAction> getPlan() {
-    	// Push them in reverse order, first action ends up on top
+    	// Walking from the goal pushes later actions first, so the first action ends up on top
     	Stack<StripsAction> plan = new Stack<>();
-    	for (int i = actionList.size() - 1; i >= 0; i--) {
-    		plan.push(actionList.get(i));
-    		
+    	for (GameState state = this; state != null; state = state.parentState) {
+    		for (int i = state.lastActions.size() - 1; i >= 0; i--) {
+    			plan.push(state.lastActions.get(i));
+    		}
     	}
     	return plan;
     }
@@ -275,147 +359,594 @@ public class GameState implements Comparable<GameState> {
      * @return true if the goal conditions are met in this instance of game state.
      */
     public boolean isGoal() {
-        return currentGold >= requiredGold && currentWood >= requiredWood;
+        return getCurrentGold() >= layout.getRequiredGold() && getCurrentWood() >= layout.getRequiredWood();
     }
 
     /**
      * The branching factor of this search graph are much higher than the planning. Generate all of the possible
      * successor states and their associated actions in this method.
      *
+     * Every child is reached by a joint action: each peasant takes one of its actions, and the town hall may build
+     * a peasant. A peasant stays idle only when it has nothing left to do, or when the resources it could harvest
+     * have no loads left for it after the peasants before it. Peasants standing on the same cell with the same cargo
+     * are interchangeable, so for them only one ordering of each combination of actions is generated.
+     *
      * @return A list of the possible successor states and their associated actions
      */
     public List<GameState> generateChildren() {
-    	List<GameState> children = new ArrayList<>();
+        return makeChildren(generateJointActions());
+    }
+    
+    /**
+     * Works out the joint actions generateChildren makes children with, without making the children. Children that
+     * turn out to be dead ends are not left out.
+     *
+     * @return The joint actions that can be taken in this state
+     */
+    List<List<StripsAction>> generateJointActions() {
+    	return generateJointActions(null);
+    }
+    
+    /**
+     * Works out only some of the joint actions generateJointActions lists, by their places in its list. The others are
+     * counted but not made, so this is much cheaper than listing them all when few are wanted.
+     *
+     * @param positions The places of the wanted joint actions in the full list, in increasing order, or null for all
+     * @return The wanted joint actions, in the same order
+     */
+    List<List<StripsAction>> generateJointActions(int[] positions) {
+    	int peasants = getPeasantCount();
     	List<List<StripsAction>> peasantActions = new ArrayList<>();
+    	int[] twinOf = new int[peasants];	// The last earlier peasant with the same cell and cargo, or -1
 
-    	for (Object[] peasant : peasants.values()) {
+    	for (int p = 0; p < peasants; p++) {
 
-    		int peasantID = (Integer)peasant[ID_INDEX];
+    		int peasantID = getPeasantIDAt(p);
     		List<StripsAction> actions = new ArrayList<>();
     		
     		if (!isPeasantHolding(peasantID)) {
-		    	if (currentGold < requiredGold) {
-			    	// Add move actions to gold mines the peasant is not adjacent to already
-			    	for (Object[] goldMine : goldSources.values()) {
-		    			Position minePosition = (Position)goldMine[POS_INDEX];
-			    		if ((Integer)goldMine[AMT_INDEX] > 0) {
-			    			StripsAction moveToMine = ActionFactory.makeMoveAction(peasantID, minePosition);
-			    			if (moveToMine.preconditionsMet(this)) {
-			    				actions.add(moveToMine);
-			    			}
-			    		}
-			    	}
-		
-			    	// Add HarvestGold action if available
-			    	StripsAction harvestGold = ActionFactory.makeHarvestAction(peasantID, Resource.GOLD);
-			    	if (harvestGold.preconditionsMet(this)) {
-			    		actions.add(harvestGold);
-			    	}
+		    	if (getCurrentGold() < layout.getRequiredGold()) {
+		    		addHarvestActions(actions, peasantID, Resource.GOLD);
 		    	}
-				
-		    	if (currentWood < requiredWood) {
-			    	// Add move actions to trees the peasant is not adjacent to already
-			    	for (Object[] tree : woodSources.values()) {
-			    		if ((Integer)tree[AMT_INDEX] > 0) {
-				    		Position treePosition = (Position)tree[POS_INDEX];
-				    		StripsAction moveToTree = ActionFactory.makeMoveAction(peasantID, treePosition);
-				    		if (moveToTree.preconditionsMet(this)) {
-				    			actions.add(moveToTree);
-				    		}
-			    		}
-			    	}
-			    	
-			    	// Add HarvestWood action if available
-			    	StripsAction harvestWood = ActionFactory.makeHarvestAction(peasantID, Resource.WOOD);
-			    	if (harvestWood.preconditionsMet(this)) {
-			    		actions.add(harvestWood);
-			    	}
+		    	if (getCurrentWood() < layout.getRequiredWood()) {
+		    		addHarvestActions(actions, peasantID, Resource.WOOD);
 		    	}
     		}
     		else {	// peasant is holding
 		    	// Add a move action to the town hall if available
-		    	StripsAction moveToTownHall = ActionFactory.makeMoveAction(peasantID, townHallPosition);
-		    	if (moveToTownHall.preconditionsMet(this)) {
+		    	StripsAction moveToTownHall = ActionFactory.makeMoveAction(this, peasantID, getTownHallPosition());
+		    	if (moveToTownHall != null && moveToTownHall.preconditionsMet(this)) {
 		    		actions.add(moveToTownHall);
 		    	}
 		    	
 		    	// Add Deposit action if available
-		    	StripsAction deposit = ActionFactory.makeDepositAction(peasantID);
-		    	if (deposit.preconditionsMet(this)) {
+		    	StripsAction deposit = ActionFactory.makeDepositAction(this, peasantID);
+		    	if (deposit != null && deposit.preconditionsMet(this)) {
 		    		actions.add(deposit);
 		    	}	
     		}
     		
 	    	peasantActions.add(actions);
+	    	twinOf[p] = -1;
+	    	int offset = peasantOffsetAt(p);
+	    	for (int q = p - 1; q >= 0 && twinOf[p] < 0; q--) {
+	    		int other = peasantOffsetAt(q);
+	    		if (values[other + CELL_OFFSET] == values[offset + CELL_OFFSET] &&
+	    				values[other + CARGO_OFFSET] == values[offset + CARGO_OFFSET]) {
+	    			twinOf[p] = q;
+	    		}
+	    	}
     	}
 
-    	List<StripsAction> stateActions = null;
-		List<StripsAction> actions = peasantActions.get(0);
-    	for (int i = 0; i < actions.size(); i++) {
-    		stateActions = new ArrayList<StripsAction>();
-    		
-    		// Add action and make state
-    		stateActions.add(actions.get(i));
-    		GameState noBuild = new GameState(this, stateActions);
-    		children.add(noBuild);
-    		
-    		// Consider build option
-    		StripsAction build = ActionFactory.makeBuildAction();
-    		if (buildPeasant && build.preconditionsMet(this)) {
-    			stateActions = new ArrayList<StripsAction>(stateActions);
-    			stateActions.add(build);
-    			GameState withBuild = new GameState(this, stateActions);
-    			children.add(withBuild);
+    	StripsAction build = ActionFactory.makeBuildAction(this);
+    	boolean canBuild = layout.isBuildPeasant() && build.preconditionsMet(this);
+    	
+    	JointActions childActions = new JointActions(positions);
+    	addJointActions(0, new int[peasants], twinOf, new int[layout.getResourceCount()], peasantActions,
+    			canBuild ? build : null, childActions);
+        return childActions.wanted;
+    }
+    
+    // Collects the joint actions at the wanted places as they are counted off, or all of them
+    private static class JointActions {
+    	
+    	private final int[] positions;	// The places wanted, in increasing order, or null for all
+    	private final List<List<StripsAction>> wanted = new ArrayList<>();
+    	private int count;				// The joint actions counted so far
+    	
+    	JointActions(int[] positions) {
+    		this.positions = positions;
+    	}
+    	
+    	// Counts off the next joint action and returns true if it is wanted
+    	boolean next() {
+    		int position = count++;
+    		return positions == null || wanted.size() < positions.length && positions[wanted.size()] == position;
+    	}
+    }
+    
+    // Picks an action for each peasant from index p on, then adds the joint action and its variant with a build. A
+    // peasant only idles when none of its actions is left, which is when its harvests would take loads the peasants
+    // before it took already. A peasant with a twin never picks a lower index than its twin, which leaves one
+    // ordering of every combination the twins can make. Choice indices past the end of a peasant's list mean idle.
+    private void addJointActions(int p, int[] choice, int[] twinOf, int[] harvesters,
+    		List<List<StripsAction>> peasantActions, StripsAction build, JointActions childActions) {
+    	if (p == choice.length) {
+    		boolean idle = true;
+    		for (int q = 0; q < choice.length && idle; q++) {
+    			idle = choice[q] >= peasantActions.get(q).size();
+    		}
+    		if (!idle && childActions.next()) {
+    			childActions.wanted.add(jointAction(choice, peasantActions, null));
+    		}
+    		if (build != null && childActions.next()) {
+    			childActions.wanted.add(jointAction(choice, peasantActions, build));
+    		}
+    		return;
+    	}
+    	
+    	List<StripsAction> actions = peasantActions.get(p);
+    	boolean picked = false;
+    	for (int c = twinOf[p] < 0 ? 0 : choice[twinOf[p]]; c < actions.size(); c++) {
+    		int resource = harvestedResource(actions.get(c));
+    		if (resource >= 0 && harvesters[resource] >= loadsNeeded(getResourceAmount(resource))) {
+    			continue;
+    		}
+    		picked = true;
+    		choice[p] = c;
+    		if (resource >= 0) {
+    			harvesters[resource]++;
+    		}
+    		addJointActions(p + 1, choice, twinOf, harvesters, peasantActions, build, childActions);
+    		if (resource >= 0) {
+    			harvesters[resource]--;
+    		}
+    	}
+    	if (!picked) {
+    		choice[p] = actions.size();
+    		addJointActions(p + 1, choice, twinOf, harvesters, peasantActions, build, childActions);
+    	}
+    }
+    
+    // Returns the actions the peasants picked, and the build if there is one
+    private static List<StripsAction> jointAction(int[] choice, List<List<StripsAction>> peasantActions,
+    		StripsAction build) {
+    	List<StripsAction> joint = new ArrayList<StripsAction>(choice.length + 1);
+    	for (int q = 0; q < choice.length; q++) {
+    		if (choice[q] < peasantActions.get(q).size()) {
+    			joint.add(peasantActions.get(q).get(choice[q]));
+    		}
+    	}
+    	if (build != null) {
+    		joint.add(build);
+    	}
+    	return joint;
+    }
+    
+    // Returns the resource an action harvests from, or -1 if it does not harvest
+    private static int harvestedResource(StripsAction action) {
+    	if (action instanceof ActionFactory.HarvestAction) {
+    		return ((ActionFactory.HarvestAction)action).getResource();
+    	}
+    	if (action instanceof ActionFactory.GatherCycleAction) {
+    		return ((ActionFactory.GatherCycleAction)action).getResource();
+    	}
+    	return -1;
+    }
+    
+    // Adds the actions an empty-handed peasant can take toward harvesting the given type of resource. Of the
+    // resources that are interchangeable for this peasant, only the first is offered.
+    private void addHarvestActions(List<StripsAction> actions, int peasantID, Resource type) {
+    	MacroMode mode = layout.getMacroMode();
+    	int cell = values[peasantOffset(peasantID) + CELL_OFFSET];
+    	int[] representatives = new int[layout.getResourceCount()];
+    	int classCount = 0;
+    	for (int r = 0; r < layout.getResourceCount(); r++) {
+    		if (layout.getResourceType(r) == type && getResourceAmount(r) > 0 &&
+    				!isEquivalentToAny(cell, r, representatives, classCount)) {
+    			representatives[classCount++] = r;
+    		}
+    	}
+    	
+    	if (mode != MacroMode.ONLY) {
+	    	// Add move actions to resources the peasant is not adjacent to already
+	    	for (int i = 0; i < classCount; i++) {
+	    		StripsAction move = ActionFactory.makeMoveAction(this, peasantID,
+	    				layout.getResourcePosition(representatives[i]));
+	    		if (move != null && move.preconditionsMet(this)) {
+	    			actions.add(move);
+	    		}
+	    	}
+	    	
+	    	// Add Harvest action if available
+	    	StripsAction harvest = ActionFactory.makeHarvestAction(this, peasantID, type);
+	    	if (harvest != null && harvest.preconditionsMet(this)) {
+	    		actions.add(harvest);
+	    	}
+    	}
+    	
+    	if (mode != MacroMode.NONE) {
+    		// Add a whole harvest trip to one resource of every class
+	    	for (int i = 0; i < classCount; i++) {
+	    		StripsAction trip = ActionFactory.makeGatherCycleAction(this, peasantID, representatives[i]);
+	    		if (trip != null && trip.preconditionsMet(this)) {
+	    			actions.add(trip);
+	    		}
+	    	}
+    	}
+    }
+    
+    /**
+     * Resources are interchangeable for a peasant when trips to them are the same (see ResourceGrid.sameTrips) and they
+     * hold the same amount, counting only what can still be used. Expanding one of them is enough: the peasant's
+     * next trips cost the same whichever it picks, and running out is not an issue for either.
+     *
+     * @param cell The cell the peasant is on
+     * @param resource The index of the resource to place
+     * @param representatives The first resource of each class found so far
+     * @param count The number of classes found so far
+     * @return True if the resource is interchangeable with one of the representatives
+     */
+    private boolean isEquivalentToAny(int cell, int resource, int[] representatives, int count) {
+    	Resource type = layout.getResourceType(resource);
+    	int needed = type == Resource.GOLD ?
+    			layout.getRequiredGold() - getCurrentGold() + (layout.isBuildPeasant() ? PEASANT_COST * getCurrentFood() : 0) :
+    			layout.getRequiredWood() - getCurrentWood();
+    	int usable = Math.min(getResourceAmount(resource), needed);
+    	for (int i = 0; i < count; i++) {
+    		int other = representatives[i];
+    		if (Math.min(getResourceAmount(other), needed) == usable &&
+    				layout.getResourceGrid().sameTrips(cell, resource, other)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    // Builds one child per list of actions. Wide expansions are split into fork-join tasks, each child is written to
+    // the slot of its actions, so the order of the children never depends on scheduling.
+    private List<GameState> makeChildren(List<List<StripsAction>> childActions) {
+    	GameState[] children = new GameState[childActions.size()];
+    	if (children.length >= layout.getParallelChildThreshold()) {
+    		ForkJoinPool.commonPool().invoke(new ChildTask(childActions, children, 0, children.length));
+    	}
+    	else {
+    		for (int i = 0; i < children.length; i++) {
+    			children[i] = new GameState(this, childActions.get(i));
     		}
     	}
     	
-  
-        return children;
+    	// Children the heuristic finds no way to a goal from are dead ends
+    	List<GameState> reachable = new ArrayList<GameState>(children.length);
+    	for (GameState child : children) {
+    		if (child.heuristic != Double.POSITIVE_INFINITY) {
+    			reachable.add(child);
+    		}
+    	}
+    	return reachable;
+    }
+    
+    // Builds the children in a range of slots, splitting the range in half until it is small
+    private class ChildTask extends RecursiveAction {
+    	
+    	private static final long serialVersionUID = 1L;
+    	private static final int SEQUENTIAL_SIZE = 4;
+    	
+    	private final List<List<StripsAction>> childActions;
+    	private final GameState[] children;
+    	private final int from;
+    	private final int to;
+    	
+    	ChildTask(List<List<StripsAction>> childActions, GameState[] children, int from, int to) {
+    		this.childActions = childActions;
+    		this.children = children;
+    		this.from = from;
+    		this.to = to;
+    	}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_SIZE) {
+				for (int i = from; i < to; i++) {
+					children[i] = new GameState(GameState.this, childActions.get(i));
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ChildTask(childActions, children, from, middle),
+					new ChildTask(childActions, children, middle, to));
+		}
     }
 
+    // Evaluates the heuristic, adding the time it took to the layout's timer when a search is being measured
+    private double timedHeuristic() {
+    	LongAdder timer = layout.getHeuristicTimer();
+    	if (timer == null) {
+    		return heuristic();
+    	}
+    	long start = System.nanoTime();
+    	double value = heuristic();
+    	timer.add(System.nanoTime() - start);
+    	return value;
+    }
+    
     /**
      * Write your heuristic function here. Remember this must be admissible for the properties of A* to hold. If you
      * can come up with an easy way of computing a consistent heuristic that is even better, but not strictly necessary.
      *
-     * Add a description here in your submission explaining your heuristic.
+     * The heuristic counts the harvest trips still needed. A peasant carries at most 100, so the missing gold and wood
+     * have to be brought in by loads of at most 100, and every load costs a harvest, a deposit and some walking.
+     *
+     * Each peasant can bring in one load more cheaply than the rest: the load it is carrying (walk to the town hall
+     * and deposit) or, if it is empty-handed, its first trip from where it stands (walk to a resource, harvest, walk
+     * to the town hall and deposit). Every other load starts and ends next to the town hall and costs a round trip,
+     * a harvest and a deposit. Round trips go to the resources closest to the town hall first, each resource taking
+     * only as many trips as it has loads left. The heuristic is the cheapest way to cover what is missing with these
+     * loads, found by trying each peasant's options. Only the options of the peasants with the cheapest loads are
+     * tried; the load of every other peasant is counted as a full one of its type, at no more than the cheapest round
+     * trip, and used while any is missing. A used load saves at least a round trip, so this is never more than trying
+     * their options too.
+     *
+     * This is the exact cost of a relaxed problem where walks are shortest paths and a first trip may use a resource
+     * whose loads are all counted for round trips, so it never overestimates the total work left. A joint action
+     * costs as much as its longest part, so it can do at most that much work per peasant, and the time left is at
+     * least the time the work can be shared out by. Every peasant there is works from the start, and the k-th
+     * peasant built from the step after the gold for it can be in: the cheapest gold loads covering k peasant costs
+     * less the gold held, shared out the same way by the peasants there are by then. A plan that builds k peasants
+     * also has to make up the gold they cost, so its work is the cheapest loads covering the goal and k peasant
+     * costs. The heuristic is the earliest finish over every number of peasants there is food for; a peasant that
+     * could only start after that finish can not move it up, so larger numbers are not tried.
+     *
+     * The heuristic is admissible, with or without peasant building: each step above either relaxes the problem or
+     * counts workers a plan may not have, so it never overestimates the cost left. It is not consistent. A deposit
+     * can make a first trip share the last loads of a resource with the round trips, and a gold deposit moves up
+     * the time the next peasant can start, and either can lower it by more than the cost of the action. So a state
+     * may be expanded before it is reached at its cheapest, and A* only returns optimal plans because the closed
+     * table reopens states reached more cheaply. Searches that do not reopen, such as an ARA* iteration, get no
+     * bound from it beyond the one they measure. Pathmax, a child keeping its parent's value less the cost of the
+     * step, would keep estimates from going down along a path, but not make the heuristic consistent: the value
+     * would depend on the path, so states would still be reopened. On the maps in data/ it reopened far more of
+     * them and expanded a third to a half more states, so it is not used. Walking distances come from the
+     * DistanceOracle, and all trip walks are precomputed per map by the ResourceGrid.
      *
      * @return The value estimated remaining cost to reach a goal state from this state.
      */
     public double heuristic() {
-    	// The priority 
-    	double heuristic = 0.0;
-    	
-    	// TODO: BUILD PEASANT?
-    	
-    	// If not holding
-    	for (Object[] peasant : peasants.values()) {
-    		int id = (Integer)peasant[ID_INDEX];
-    		Position position = (Position)peasant[POS_INDEX];
-    		Resource holdType = (Resource)peasant[TYPE_INDEX];
-    		int holdingCount = (Integer)peasant[AMT_INDEX];
-	    	if (holdType == Resource.NONE) {
-	    		// - proximity to nearest and lowest resource is good
-	    		if (currentGold < currentWood) {
-	    			heuristic += nearestMineToPosition(position).euclideanDistance(position);
-	    		}
-	    		else {
-	    			heuristic += nearestTreeToPosition(position).euclideanDistance(position);
-	    		}
-	    	}
-	    	else { // If holding, minimize distance to town hall
-	    		if (parentState.parentState.isPeasantHolding(id)) {
-	    			heuristic += 100;
-	    		}
-	    		heuristic += position.euclideanDistance(townHallPosition);
-	    	}
-	    	
-	    	heuristic -= holdingCount/10;
+    	int goldNeeded = Math.max(0, layout.getRequiredGold() - getCurrentGold());
+    	int woodNeeded = Math.max(0, layout.getRequiredWood() - getCurrentWood());
+    	if (goldNeeded == 0 && woodNeeded == 0) {
+    		return 0.0;
     	}
-
-    	heuristic += requiredGold - currentGold;
-    	heuristic += requiredWood - currentWood;
     	
-        return heuristic;
+    	// The cost of each peasant's cheaper load, for the type it can bring in
+    	int count = getPeasantCount();
+    	int[] carried = new int[count];
+    	Resource[] carriedType = new Resource[count];
+    	int[] carryCost = new int[count];
+    	int[] goldTrip = new int[count];
+    	int[] woodTrip = new int[count];
+    	ResourceGrid grid = layout.getResourceGrid();
+    	for (int p = 0; p < count; p++) {
+    		int offset = peasantOffsetAt(p);
+    		int cell = values[offset + CELL_OFFSET];
+    		carriedType[p] = cargoType(values[offset + CARGO_OFFSET]);
+    		carried[p] = cargoAmount(values[offset + CARGO_OFFSET]);
+    		if (carriedType[p] != Resource.NONE) {
+    			// Walk to the town hall and deposit
+    			int walk = layout.getDistanceOracle().distanceToTarget(cell, layout.getTownHallTarget());
+    			carryCost[p] = walk == DistanceOracle.UNREACHABLE ? UNREACHABLE_COST : walk + 1;
+    		}
+    		else {
+    			// Walk to a resource and back, harvest and deposit
+    			goldTrip[p] = loadCost(grid.cheapestTripWalk(cell, Resource.GOLD, values, HEADER_SIZE));
+    			woodTrip[p] = loadCost(grid.cheapestTripWalk(cell, Resource.WOOD, values, HEADER_SIZE));
+    		}
+    	}
+    	
+    	// Try the options of the peasants with the cheapest loads, the loads of the rest are counted at a lower bound
+    	int peasants = Math.min(count, MAX_HEURISTIC_PEASANTS);
+    	int[][] leftOut = null;
+    	if (count > peasants) {
+    		sortByLoadCost(carried, carriedType, carryCost, goldTrip, woodTrip);
+    		leftOut = leftOutLoads(peasants, carriedType, carryCost, goldTrip, woodTrip);
+    	}
+    	
+    	int cost = cheapestLoads(0, peasants, goldNeeded, woodNeeded,
+    			carried, carriedType, carryCost, goldTrip, woodTrip, leftOut);
+    	if (cost >= UNREACHABLE_COST) {
+    		return Double.POSITIVE_INFINITY;
+    	}
+    	
+    	// Peasants work at the same time, so the work is shared by every peasant there is, and by every peasant built
+    	// from the time it can start on. A plan that builds k peasants also has to bring in the gold for them, so the
+    	// heuristic is the earliest finish over every number of peasants there is food for.
+    	int buildable = layout.isBuildPeasant() ? getCurrentFood() : 0;
+    	double[] starts = new double[buildable];
+    	double best = finishTime(cost, count, starts, 0);
+    	for (int built = 0; built < buildable; built++) {
+    		// The gold for this peasant has to be brought in first, then the build takes a step. A peasant that can
+    		// only start after the best finish so far can not make any plan finish sooner, nor can the ones after it.
+    		int goldMissing = PEASANT_COST * (built + 1) - getCurrentGold();
+    		int goldWork = goldMissing <= 0 ? 0 : cheapestLoads(0, peasants, goldMissing, 0,
+    				carried, carriedType, carryCost, goldTrip, woodTrip, leftOut);
+    		if (goldWork >= UNREACHABLE_COST) {
+    			break;
+    		}
+    		starts[built] = finishTime(goldWork, count, starts, built) + 1;
+    		if (starts[built] >= best) {
+    			break;
+    		}
+    		
+    		int work = cheapestLoads(0, peasants, Math.max(0, goldMissing + layout.getRequiredGold()), woodNeeded,
+    				carried, carriedType, carryCost, goldTrip, woodTrip, leftOut);
+    		if (work >= UNREACHABLE_COST) {
+    			break;
+    		}
+    		best = Math.min(best, finishTime(work, count, starts, built + 1));
+    	}
+    	return best;
+    }
+    
+    // Returns the earliest time an amount of work can be done by the peasants there are, each doing one unit of work
+    // per unit of time, and by the built peasants from their start times on, which are in increasing order
+    private static double finishTime(int work, int peasants, double[] starts, int built) {
+    	if (work <= 0) {
+    		return 0.0;
+    	}
+    	double time = 0;
+    	double done = 0;
+    	int rate = peasants;
+    	for (int k = 0; k < built; k++) {
+    		if (rate > 0 && done + rate * (starts[k] - time) >= work) {
+    			break;
+    		}
+    		done += rate * (starts[k] - time);
+    		time = starts[k];
+    		rate++;
+    	}
+    	return rate == 0 ? Double.POSITIVE_INFINITY : time + (work - done) / rate;
+    }
+    
+    // Returns the cheapest cost of covering the missing gold and wood using the cheaper loads of the peasants from
+    // index p up to the last one tried, plus the loads left out and as many round trips as the rest needs
+    private int cheapestLoads(int p, int last, int goldNeeded, int woodNeeded, int[] carried, Resource[] carriedType,
+    		int[] carryCost, int[] goldTrip, int[] woodTrip, int[][] leftOut) {
+    	if (p == last || (goldNeeded <= 0 && woodNeeded <= 0)) {
+    		return leftOut == null ?
+    				roundTripsCost(Resource.GOLD, goldNeeded) + roundTripsCost(Resource.WOOD, woodNeeded) :
+    				leftOutCost(goldNeeded, woodNeeded, leftOut);
+    	}
+    	
+    	// This peasant's cheaper load is not used
+    	int best = cheapestLoads(p + 1, last, goldNeeded, woodNeeded,
+    			carried, carriedType, carryCost, goldTrip, woodTrip, leftOut);
+    	
+    	if (carriedType[p] == Resource.GOLD && goldNeeded > 0) {
+    		best = Math.min(best, carryCost[p] + cheapestLoads(p + 1, last, goldNeeded - carried[p], woodNeeded,
+    				carried, carriedType, carryCost, goldTrip, woodTrip, leftOut));
+    	}
+    	else if (carriedType[p] == Resource.WOOD && woodNeeded > 0) {
+    		best = Math.min(best, carryCost[p] + cheapestLoads(p + 1, last, goldNeeded, woodNeeded - carried[p],
+    				carried, carriedType, carryCost, goldTrip, woodTrip, leftOut));
+    	}
+    	else if (carriedType[p] == Resource.NONE) {
+    		if (goldNeeded > 0) {
+    			best = Math.min(best, goldTrip[p] + cheapestLoads(p + 1, last, goldNeeded - 100, woodNeeded,
+    					carried, carriedType, carryCost, goldTrip, woodTrip, leftOut));
+    		}
+    		if (woodNeeded > 0) {
+    			best = Math.min(best, woodTrip[p] + cheapestLoads(p + 1, last, goldNeeded, woodNeeded - 100,
+    					carried, carriedType, carryCost, goldTrip, woodTrip, leftOut));
+    		}
+    	}
+    	return Math.min(best, UNREACHABLE_COST);
+    }
+    
+    // Sorts the peasants' loads by the cheaper option of each, cheapest first
+    private static void sortByLoadCost(int[] carried, Resource[] carriedType, int[] carryCost,
+    		int[] goldTrip, int[] woodTrip) {
+    	for (int p = 1; p < carried.length; p++) {
+    		for (int q = p; q > 0 && cheaperLoadCost(q, carriedType, carryCost, goldTrip, woodTrip) <
+    				cheaperLoadCost(q - 1, carriedType, carryCost, goldTrip, woodTrip); q--) {
+    			swap(carried, q, q - 1);
+    			swap(carryCost, q, q - 1);
+    			swap(goldTrip, q, q - 1);
+    			swap(woodTrip, q, q - 1);
+    			Resource type = carriedType[q];
+    			carriedType[q] = carriedType[q - 1];
+    			carriedType[q - 1] = type;
+    		}
+    	}
+    }
+    
+    // Returns the cost of a peasant's cheaper load, whichever type it brings in
+    private static int cheaperLoadCost(int p, Resource[] carriedType, int[] carryCost,
+    		int[] goldTrip, int[] woodTrip) {
+    	return carriedType[p] != Resource.NONE ? carryCost[p] : Math.min(goldTrip[p], woodTrip[p]);
+    }
+    
+    private static void swap(int[] array, int i, int j) {
+    	int value = array[i];
+    	array[i] = array[j];
+    	array[j] = value;
+    }
+    
+    // Returns the lower bounds on the loads of the peasants from index first on, cheapest first, by the type they
+    // bring in: gold, wood, and either for the empty-handed. A load is bounded by the cheapest round trip it can
+    // save as well as by its own cost.
+    private int[][] leftOutLoads(int first, Resource[] carriedType, int[] carryCost, int[] goldTrip, int[] woodTrip) {
+    	int goldRoundTrip = roundTripsCost(Resource.GOLD, 100);
+    	int woodRoundTrip = roundTripsCost(Resource.WOOD, 100);
+    	int[][] loads = new int[RESOURCES.length][];
+    	for (Resource type : RESOURCES) {
+    		int size = 0;
+    		int[] costs = new int[carriedType.length - first];
+    		for (int p = first; p < carriedType.length; p++) {
+    			if (carriedType[p] != type) {
+    				continue;
+    			}
+    			if (type == Resource.GOLD) {
+    				costs[size++] = Math.min(carryCost[p], goldRoundTrip);
+    			}
+    			else if (type == Resource.WOOD) {
+    				costs[size++] = Math.min(carryCost[p], woodRoundTrip);
+    			}
+    			else {
+    				costs[size++] = Math.min(Math.min(goldTrip[p], woodTrip[p]), Math.min(goldRoundTrip, woodRoundTrip));
+    			}
+    		}
+    		loads[type.ordinal()] = Arrays.copyOf(costs, size);
+    		Arrays.sort(loads[type.ordinal()]);
+    	}
+    	return loads;
+    }
+    
+    // Returns the cheapest cost of covering the missing gold and wood with the loads left out, cheapest first and
+    // only while some is missing, and round trips for the rest. Every split of the empty-handed peasants' loads
+    // between gold and wood is tried.
+    private int leftOutCost(int goldNeeded, int woodNeeded, int[][] leftOut) {
+    	int[] either = leftOut[Resource.NONE.ordinal()];
+    	int best = UNREACHABLE_COST;
+    	for (int toGold = 0; toGold <= either.length; toGold++) {
+    		int cost = typeCost(Resource.GOLD, goldNeeded, leftOut[Resource.GOLD.ordinal()], either, 0, toGold) +
+    				typeCost(Resource.WOOD, woodNeeded, leftOut[Resource.WOOD.ordinal()], either, toGold, either.length);
+    		best = Math.min(best, cost);
+    	}
+    	return best;
+    }
+    
+    // Returns the cost of covering an amount with the given loads of its type and a range of the either-type loads,
+    // cheapest first, each as a full load, and round trips for what is still missing
+    private int typeCost(Resource type, int needed, int[] loads, int[] either, int from, int to) {
+    	int[] merged = Arrays.copyOf(loads, loads.length + to - from);
+    	System.arraycopy(either, from, merged, loads.length, to - from);
+    	Arrays.sort(merged);
+    	int used = Math.min(merged.length, loadsNeeded(needed));
+    	int cost = 0;
+    	for (int i = 0; i < used; i++) {
+    		cost += merged[i];
+    	}
+    	return Math.min(UNREACHABLE_COST, cost + roundTripsCost(type, needed - 100 * used));
+    }
+    
+    // Returns the cost of the round trips, harvests and deposits needed to bring in an amount
+    private int roundTripsCost(Resource type, int amount) {
+    	int trips = loadsNeeded(amount);
+    	if (trips == 0) {
+    		return 0;
+    	}
+    	long walk = layout.getResourceGrid().cheapestRoundTripsWalk(type, trips, values, HEADER_SIZE);
+    	return walk == Long.MAX_VALUE ? UNREACHABLE_COST : (int)Math.min(UNREACHABLE_COST, walk + 2L * trips);
+    }
+    
+    // Returns the number of loads of 100 needed to bring in an amount
+    private static int loadsNeeded(int amount) {
+    	return amount <= 0 ? 0 : (amount + 99) / 100;
+    }
+    
+    // Returns the cost of a load given the walking part, a harvest and a deposit
+    private static int loadCost(int walk) {
+    	return walk == DistanceOracle.UNREACHABLE ? UNREACHABLE_COST : walk + 2;
     }
 
     /**
@@ -428,31 +959,60 @@ public class GameState implements Comparable<GameState> {
     public double getCost() {
         return cost;
     }
+    
+    /**
+     * @return The heuristic value computed when this state was created
+     */
+    public double getHeuristic() {
+    	return heuristic;
+    }
+    
+    /**
+     * @return The cost plus the heuristic value, computed when this state was created
+     */
+    public double getEstimate() {
+    	return estimate;
+    }
 
     /**
      * This is necessary to use your state in the Java priority queue. See the official priority queue and Comparable
      * interface documentation to learn how this function should work.
      *
+     * States are ordered by their cached cost plus heuristic. Ties go to the state with the higher cost, since it is
+     * the one closer to a goal, and then to the lower hash so the order never depends on insertion.
+     *
      * @param o The other game state to compare
      * @return 1 if this state costs more than the other, 0 if equal, -1 otherwise
      */
     @Override
     public int compareTo(GameState o) {
-    	double g1 = heuristic() + getCost();
-		double g2 = o.heuristic() + o.getCost();
-		return (g1 > g2) ? 1 : (g1 < g2) ? -1 : 0;
+    	int byEstimate = Double.compare(estimate, o.estimate);
+    	if (byEstimate != 0) {
+    		return byEstimate;
+    	}
+    	int byCost = Double.compare(o.cost, cost);
+    	if (byCost != 0) {
+    		return byCost;
+    	}
+    	return Long.compare(zobrist, o.zobrist);
     }
 
     /**
      * This will be necessary to use the GameState as a key in a Set or Map.
      *
+     * Two states are equal when they are on the same map and all their packed values (totals, resource amounts and
+     * peasant positions and cargo) match. The plan used to reach them does not matter.
+     *
      * @param o The game state to compare
      * @return True if this state equals the other state, false otherwise.
      */
     @Override
     public boolean equals(Object o) {
-        // TODO: Implement me!
-        return false;
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        GameState state = (GameState) o;
+        return zobrist == state.zobrist && layout == state.layout && Arrays.equals(values, state.values);
     }
 
     /**
@@ -463,155 +1023,197 @@ public class GameState implements Comparable<GameState> {
      */
     @Override
     public int hashCode() {
-        // TODO: Implement me!
-        return 0;
+        return (int)(zobrist ^ (zobrist >>> 32));
+    }
+    
+    /**
+     * A fingerprint of the planning problem that starts at this state: the map, the goal, the resource amounts and
+     * the peasants. Unlike the Zobrist hash it covers the map and the goal, and it is long enough that two problems
+     * sharing one need not be considered, so it can key plans kept across runs.
+     *
+     * @return The SHA-256 digest of the problem, in hex
+     */
+    public String getFingerprint() {
+    	try {
+    		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    		DataOutputStream out = new DataOutputStream(bytes);
+    		layout.writeFingerprint(out);
+    		out.writeInt(values.length);
+    		for (int value : values) {
+    			out.writeInt(value);
+    		}
+    		out.flush();
+    		
+    		StringBuilder hex = new StringBuilder();
+    		for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray())) {
+    			hex.append(String.format("%02x", b));
+    		}
+    		return hex.toString();
+    	} catch (IOException | NoSuchAlgorithmException e) {
+    		throw new IllegalStateException("Unable to fingerprint the state", e);
+    	}
+    }
+    
+    /**
+     * The 64 bit Zobrist hash of this state. It is kept up to date as actions are applied, so reading it is free.
+     *
+     * @return The hash of the packed state values
+     */
+    public long getZobristHash() {
+    	return zobrist;
     }
     
     public boolean isResourceAtPosition(Position position) {
-    	return goldSources.containsKey(position.keyString()) || 
-    			woodSources.containsKey(position.keyString());
+    	return position.inBounds(getXExtent(), getYExtent()) &&
+    			layout.getResourceGrid().resourceAt(layout.cellOf(position)) >= 0;
+    }
+    
+    /**
+     * Finds a non-empty resource of the given type that is adjacent to the given position.
+     *
+     * @param position The position to check around
+     * @param type The type of resource to look for
+     * @return The index of the resource, or -1 if there is none
+     */
+    public int resourceNextToPosition(Position position, Resource type) {
+    	return layout.getResourceGrid().adjacentResource(layout.cellOf(position), type, values, HEADER_SIZE);
     }
     
     public Position goldMineNextToPosition(Position position) {
-    	// Check every gold mine for adjacency
-    	for (Object[] goldMine : goldSources.values()) {
-    		Position minePosition = (Position)goldMine[POS_INDEX];
-    		if (minePosition.isAdjacent(position)) {
-    			return minePosition;
-    		}
-    	}
-    	return null;
+    	int mine = resourceNextToPosition(position, Resource.GOLD);
+    	return mine < 0 ? null : layout.getResourcePosition(mine);
     }
     
     public Position treeNextToPosition(Position position) {
-    	// Check every tree for adjacency
-    	for (Object[] tree : woodSources.values()) {
-    		Position treePosition = (Position)tree[POS_INDEX];
-    		if (treePosition.isAdjacent(position)) {
-    			return treePosition;
-    		}
-    	}
-    	return null;
+    	int tree = resourceNextToPosition(position, Resource.WOOD);
+    	return tree < 0 ? null : layout.getResourcePosition(tree);
     }
     
     public Position nearestMineToPosition(Position position) {
-    	Position nearestMine = null;
-    	double minDist = Double.MAX_VALUE;
-    	for (Object[] goldMine : goldSources.values()) {
-    		Position minePosition = (Position)goldMine[POS_INDEX];
-    		double dist = minePosition.euclideanDistance(position);
-    		if (dist < minDist) {
-    			minDist = dist;
-    			nearestMine = minePosition;
-    		}
-    	}
-    	return nearestMine;
+    	return nearestResourceToPosition(position, Resource.GOLD);
     }
     
     public Position nearestTreeToPosition(Position position) {
-    	Position nearestTree = null;
-    	double minDist = Double.MAX_VALUE;
-    	for (Object[] tree : woodSources.values()) {
-    		Position treePosition = (Position)tree[POS_INDEX];
-    		double dist = treePosition.euclideanDistance(position);
-    		if (dist < minDist) {
-    			minDist = dist;
-    			nearestTree = treePosition;
-    		}
-    	}
-    	return nearestTree;
+    	return nearestResourceToPosition(position, Resource.WOOD);
     }
     
-    public boolean isResourceEmpty(Resource type, String key) {
-    	if (type == Resource.GOLD) {
-    		Object[] goldMine = goldSources.get(key);
-    		return (Integer)goldMine[AMT_INDEX] >= 0;
-    	}
-    	else if (type == Resource.WOOD) {
-    		Object[] tree = woodSources.get(key);
-    		return (Integer)tree[AMT_INDEX] >= 0;
-    	}
-    	return true;
+    private Position nearestResourceToPosition(Position position, Resource type) {
+    	int nearest = nearestResource(position, type);
+    	return nearest < 0 ? null : layout.getResourcePosition(nearest);
+    }
+    
+    // Returns the index of the non-empty resource of the given type that is the shortest walk away, -1 if none can
+    // be reached
+    private int nearestResource(Position position, Resource type) {
+    	return layout.getResourceGrid().nearestResource(layout.cellOf(position), type, values, HEADER_SIZE);
+    }
+    
+    public boolean isResourceEmpty(int resource) {
+    	return getResourceAmount(resource) <= 0;
     }
     
     public boolean isPeasantHolding(int id) {
-    	Object[] peasant = peasants.get(id);
-    	Resource holdType = (Resource)peasant[TYPE_INDEX];
-    	return holdType != Resource.NONE;
+    	return cargoType(values[peasantOffset(id) + CARGO_OFFSET]) != Resource.NONE;
     }
     
     public void depositResource(int id) {
-    	System.out.println("DEPOSIT\n - pre");
-    	System.out.println(getResourceLevels());
     	// Get depositing peasant info
-    	Object[] peasant = peasants.remove(id);
-    	Resource holdType = (Resource)peasant[TYPE_INDEX];
-    	int holdingCount = (Integer)peasant[AMT_INDEX];
+    	int cargoIndex = peasantOffset(id) + CARGO_OFFSET;
+    	Resource holdType = cargoType(values[cargoIndex]);
+    	int holdingCount = cargoAmount(values[cargoIndex]);
     	
     	// Make deposit
     	if (holdType == Resource.GOLD) {
-    		currentGold += holdingCount;
+    		setValue(GOLD_INDEX, values[GOLD_INDEX] + holdingCount);
     	}
     	else if (holdType == Resource.WOOD){
-    		currentWood += holdingCount;
+    		setValue(WOOD_INDEX, values[WOOD_INDEX] + holdingCount);
     	}
     	
-    	// Change peasant info
-    	peasant[AMT_INDEX] = 0;
-    	peasant[TYPE_INDEX] = Resource.NONE;
+    	// Peasant is now empty-handed
+    	setValue(cargoIndex, packCargo(0, Resource.NONE));
+    }
+    
+    public void harvestResource(int id, int resource) {
+    	// Take up to 100 from the resource
+    	int amountIndex = HEADER_SIZE + resource;
+    	int holdingCount = Math.min(100, values[amountIndex]);
+    	setValue(amountIndex, values[amountIndex] - holdingCount);
     	
-    	// Save edited peasant info
-    	peasants.put(id, peasant);
-    	System.out.println(getResourceLevels());
+    	// Edit peasant info
+    	setValue(peasantOffset(id) + CARGO_OFFSET, packCargo(holdingCount, layout.getResourceType(resource)));
     }
     
-    public void harvestResource(int id, String key, Resource type) {
-    	Object[] peasant = peasants.remove(id);
-    	int holdingCount = 0;
+    /**
+     * Spends the gold and food for a peasant and adds it, empty-handed, next to the town hall. SEPIA assigns the real
+     * id when the peasant is made, so built peasants get placeholder ids -1, -2, ... in the order they are built.
+     */
+    public void buildPeasant() {
+    	setValue(GOLD_INDEX, values[GOLD_INDEX] - PEASANT_COST);
+    	setValue(FOOD_INDEX, values[FOOD_INDEX] - 1);
     	
-    	if (type == Resource.GOLD) {
-    		Object[] goldMine = goldSources.remove(key);
-    		int goldCount = (Integer)goldMine[AMT_INDEX];
-    		if (goldCount >= 100) {
-    			holdingCount = 100;
-    			goldCount -= holdingCount;
-    		}
-    		else if (goldCount < 100) {
-    			holdingCount = goldCount;
-    			goldCount = 0;
+    	int placeholderID = -1;
+    	for (int p = 0; p < getPeasantCount(); p++) {
+    		if (getPeasantIDAt(p) < 0) {
+    			placeholderID--;
     		}
-    		goldMine[AMT_INDEX] = goldCount;
-    		goldSources.put(key, goldMine);
     	}
-    	else if (type == Resource.WOOD) {
-    		Object[] tree = woodSources.remove(key);
-    		int woodCount = (Integer)tree[AMT_INDEX];
-    		if (woodCount >= 100) {
-    			holdingCount = 100;
-    			woodCount -= holdingCount;
-    		}
-    		else if (woodCount < 100) {
-    			holdingCount = woodCount;
-    			woodCount = 0;
+    	
+    	// Grow the packed values by one record, hashing the new values as they are set
+    	int offset = values.length;
+    	values = Arrays.copyOf(values, offset + PEASANT_SIZE);
+    	setNewValue(offset + ID_OFFSET, placeholderID);
+    	setNewValue(offset + CELL_OFFSET, layout.cellOf(layout.getPeasantSpawnPosition()));
+    	setNewValue(offset + CARGO_OFFSET, packCargo(0, Resource.NONE));
+    	setValue(PEASANT_COUNT_INDEX, values[PEASANT_COUNT_INDEX] + 1);
+    }
+    
+    // Changes one packed value and updates the hash for it
+    private void setValue(int index, int value) {
+    	zobrist ^= zobristKey(index, values[index]) ^ zobristKey(index, value);
+    	values[index] = value;
+    }
+    
+    // Sets a value in a slot the packed array was just grown by
+    private void setNewValue(int index, int value) {
+    	zobrist ^= zobristKey(index, value);
+    	values[index] = value;
+    }
+    
+    // Returns the random key for a value at an index of the packed array. Keys are derived with the SplitMix64
+    // finalizer rather than looked up in a table, since resource amounts can take thousands of values.
+    private static long zobristKey(int index, int value) {
+    	long z = ((long)index << 32 | (value & 0xFFFFFFFFL)) + 0x9E3779B97F4A7C15L;
+    	z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    	z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    	return z ^ (z >>> 31);
+    }
+    
+    // Returns the index in the packed values of the peasant record at the given position
+    private int peasantOffsetAt(int index) {
+    	return HEADER_SIZE + layout.getResourceCount() + index * PEASANT_SIZE;
+    }
+    
+    // Returns the index in the packed values of the record for the peasant with the given id
+    private int peasantOffset(int id) {
+    	for (int p = 0; p < getPeasantCount(); p++) {
+    		int offset = peasantOffsetAt(p);
+    		if (values[offset + ID_OFFSET] == id) {
+    			return offset;
     		}
-    		tree[AMT_INDEX] = woodCount;
-    		woodSources.put(key, tree);
     	}
-    	
-    	// Edit peasant info
-    	peasant[AMT_INDEX] = holdingCount;
-    	peasant[TYPE_INDEX] = type;
-    	
-    	// Save edited peasant info
-    	peasants.put(id, peasant);
+    	throw new IllegalArgumentException("No peasant with id " + id);
     }
     
-    public void buildPeasant() {
-    	currentGold -= 400;
-    	currentFood -= 1;
-    	
-    	// build peasant info [] and add it
-    	
-    	System.out.println("BUILT PEASANT");
+    private static int packCargo(int amount, Resource type) {
+    	return amount << CARGO_SHIFT | type.ordinal();
+    }
+    
+    private static int cargoAmount(int cargo) {
+    	return cargo >>> CARGO_SHIFT;
+    }
+    
+    private static Resource cargoType(int cargo) {
+    	return RESOURCES[cargo & CARGO_TYPE_MASK];
     }
 }
@@ -0,0 +1,203 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Hash distributed A* (HDA*). Every state is owned by one worker thread, chosen from its Zobrist hash. Each worker
+ * has its own open list and closed table and only ever expands states it owns, so neither needs locking. Generated
+ * children are sent to their owner's inbox, a lock-free queue that any worker may add to.
+ *
+ * The cheapest goal found so far (the incumbent) is shared by all workers. A state whose cost plus heuristic is not
+ * below the incumbent can not lead to a cheaper plan, so it is dropped. The search ends when no state is left
+ * anywhere, at which point the incumbent is optimal as long as the heuristic is admissible, exactly as for the serial
+ * search.
+ *
+ * Termination is detected with a single counter of pending states: a state is counted from the moment it is sent
+ * until its owner has dropped it or finished expanding it, so the counter only reaches zero when every inbox and
+ * open list is empty and no worker is mid-expansion.
+ */
+public class HashDistributedSearch {
+
+	private static final long IDLE_PARK_NANOS = 50000L;
+
+	private final int threads;						// The number of worker threads
+	private final Supplier<OpenList> openLists;	// Makes each worker's open list
+	private final SearchMetrics metrics;			// Counts the work of every worker
+
+	private Worker[] workers;
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong incumbentBits = new AtomicLong();	// Double bits of the incumbent cost
+	private volatile GameState incumbent;						// The cheapest goal found so far
+	private volatile Throwable failure;							// The first error thrown by a worker
+
+	/**
+	 * @param threads The number of worker threads to search with
+	 * @param openLists Makes an empty open list for each worker
+	 * @param metrics The metrics to record the search in
+	 */
+	public HashDistributedSearch(int threads, Supplier<OpenList> openLists, SearchMetrics metrics) {
+		this.threads = Math.max(1, threads);
+		this.openLists = openLists;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Searches for a cheapest plan from the given state.
+	 *
+	 * @param startState The state which is being planned from
+	 * @return The plan, or null if no plan exists
+	 */
+	public Stack<StripsAction> search(GameState startState) {
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+		}
+		incumbent = null;
+		incumbentBits.set(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+		failure = null;
+
+		// Hand the start state to its owner, then let every worker run
+		send(startState);
+		Thread[] running = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			running[i] = new Thread(workers[i], "hda-worker-" + i);
+			running[i].start();
+		}
+		for (Thread thread : running) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		if (failure != null) {
+			throw new IllegalStateException("HDA* worker failed", failure);
+		}
+
+		System.out.println("HDA* expanded " + metrics.getNodesExpanded() + " states on " + threads + " threads");
+
+		return incumbent == null ? null : incumbent.getPlan();
+	}
+
+	// Returns the worker that owns a state. The hash is scrambled first so that ownership does not line up with the
+	// slots of the closed tables, which use the same hash.
+	private int ownerOf(long hash) {
+		return (int)(((hash * 0xC2B2AE3D27D4EB4FL) >>> 33) % threads);
+	}
+
+	// Counts a state as pending and adds it to its owner's inbox
+	private void send(GameState state) {
+		pending.incrementAndGet();
+		workers[ownerOf(state.getZobristHash())].inbox.offer(state);
+	}
+
+	private double incumbentCost() {
+		return Double.longBitsToDouble(incumbentBits.get());
+	}
+
+	// Records a goal if it is cheaper than the incumbent
+	private void offerGoal(GameState goal) {
+		long bits = Double.doubleToLongBits(goal.getCost());
+		while (true) {
+			long current = incumbentBits.get();
+			if (goal.getCost() >= Double.longBitsToDouble(current)) {
+				return;
+			}
+			if (incumbentBits.compareAndSet(current, bits)) {
+				synchronized (this) {
+					if (incumbent == null || goal.getCost() < incumbent.getCost()) {
+						incumbent = goal;
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final Queue<GameState> inbox = new ConcurrentLinkedQueue<GameState>();
+		private final OpenList openList = openLists.get();
+		private final ClosedTable closed = new ClosedTable(1 << 14);
+
+		@Override
+		public void run() {
+			try {
+				while (pending.get() > 0 && failure == null) {
+					boolean worked = drainInbox();
+					if (!openList.isEmpty()) {
+						expand(openList.poll());
+						worked = true;
+					}
+					if (!worked) {
+						LockSupport.parkNanos(IDLE_PARK_NANOS);
+					}
+				}
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		// Moves every received state that improves on earlier visits into the open list
+		private boolean drainInbox() {
+			boolean received = false;
+			GameState state;
+			while ((state = inbox.poll()) != null) {
+				received = true;
+				if (state.getEstimate() >= incumbentCost()) {
+					pending.decrementAndGet();
+					continue;
+				}
+				boolean seen = closed.getCost(state.getZobristHash()) != Double.POSITIVE_INFINITY;
+				if (closed.offer(state.getZobristHash(), state.getCost())) {
+					openList.offer(state);
+					if (seen) {
+						metrics.recordReopening();
+					}
+				}
+				else {
+					metrics.recordDuplicate();
+					pending.decrementAndGet();
+				}
+			}
+			return received;
+		}
+
+		private void expand(GameState state) {
+			// Skip stale entries and states that can not beat the incumbent
+			if (state.getCost() > closed.getCost(state.getZobristHash()) || state.getEstimate() >= incumbentCost()) {
+				pending.decrementAndGet();
+				return;
+			}
+
+			if (state.isGoal()) {
+				offerGoal(state);
+			}
+			else {
+				List<GameState> children = state.generateChildren();
+				for (GameState child : children) {
+					if (child.getEstimate() < incumbentCost()) {
+						send(child);
+					}
+				}
+				metrics.recordExpansion();
+				metrics.recordGenerated(children.size());
+				// The pending states stand in for the open lists, which belong to other threads
+				metrics.recordOpenListSize(pending.get());
+			}
+
+			// Only now that its children are counted may this state stop being pending
+			pending.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.PriorityQueue;
+
+/**
+ * An open list backed by a binary heap, ordered by GameState.compareTo.
+ */
+public class HeapOpenList implements OpenList {
+
+	private final PriorityQueue<GameState> heap;
+
+	public HeapOpenList(int initialCapacity) {
+		this.heap = new PriorityQueue<GameState>(initialCapacity);
+	}
+
+	@Override
+	public void offer(GameState state) {
+		heap.offer(state);
+	}
+
+	@Override
+	public GameState poll() {
+		return heap.poll();
+	}
+
+	@Override
+	public int size() {
+		return heap.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return heap.isEmpty();
+	}
+}
@@ -0,0 +1,117 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Iterative deepening A* (IDA*). Runs depth first searches that cut off every state whose cost plus heuristic is above
+ * a threshold, starting at the heuristic of the start state and raising the threshold to the smallest value that was
+ * cut off each time. Only the states on the current path and their siblings are kept, so memory grows with the plan
+ * length instead of with the number of states seen. With an admissible heuristic the first plan found is optimal.
+ *
+ * Many orders of the same trips lead to the same state, and a plain depth first search would search below each of them
+ * again. A fixed size transposition table remembers the cheapest cost each state was reached with in the current
+ * iteration, and a state reached again at no lower cost is not searched twice. The table overwrites on collision, so
+ * it never grows past the size it is given; a lost entry only costs a repeated search.
+ */
+public class IterativeDeepeningSearch {
+
+	private final int tableMask;
+	private final long[] seenHashes;	// The hash of the state in each slot
+	private final double[] seenCosts;	// The cheapest cost the state was reached with
+	private final int[] seenIterations;	// The iteration the slot was written in, 0 for never
+	private final SearchMetrics metrics;	// Counts the work done over all iterations
+
+	private int iteration;				// The current iteration, counting from 1
+	private double threshold;			// The cost plus heuristic states are cut off above
+	private double nextThreshold;		// The smallest cost plus heuristic cut off in this iteration
+	private long held;					// The children waiting on the current path, IDA*'s open list
+
+	/**
+	 * @param tableSize The number of states the transposition table can hold, rounded up to a power of two
+	 * @param metrics The metrics to record the search in
+	 */
+	public IterativeDeepeningSearch(int tableSize, SearchMetrics metrics) {
+		int size = Integer.highestOneBit(Math.max(2, tableSize) - 1) << 1;
+		this.tableMask = size - 1;
+		this.seenHashes = new long[size];
+		this.seenCosts = new double[size];
+		this.seenIterations = new int[size];
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Searches for a cheapest plan from the given state.
+	 *
+	 * @param startState The state which is being planned from
+	 * @return The plan, or null if no plan exists
+	 */
+	public Stack<StripsAction> search(GameState startState) {
+		threshold = startState.getEstimate();
+		held = 0;
+		iteration = 0;
+		while (threshold != Double.POSITIVE_INFINITY) {
+			iteration++;
+			nextThreshold = Double.POSITIVE_INFINITY;
+			GameState goal = depthFirst(startState);
+			if (goal != null) {
+				System.out.println("IDA* expanded " + metrics.getNodesExpanded() + " states in " + iteration +
+						" iterations");
+				return goal.getPlan();
+			}
+			threshold = nextThreshold;
+		}
+		System.out.println("IDA*: no plan found");
+		return null;
+	}
+
+	// Searches below a state within the threshold. Returns the goal reached, or null if there is none.
+	private GameState depthFirst(GameState state) {
+		if (state.getEstimate() > threshold) {
+			nextThreshold = Math.min(nextThreshold, state.getEstimate());
+			return null;
+		}
+		if (state.isGoal()) {
+			return state;
+		}
+		if (!firstVisit(state)) {
+			return null;
+		}
+
+		// Children are tried most promising first, so the goal tends to turn up early in the last iteration
+		List<GameState> children = state.generateChildren();
+		Collections.sort(children);
+		metrics.recordExpansion();
+		metrics.recordGenerated(children.size());
+		held += children.size();
+		metrics.recordOpenListSize(held);
+		for (GameState child : children) {
+			held--;
+			GameState goal = depthFirst(child);
+			if (goal != null) {
+				return goal;
+			}
+		}
+		return null;
+	}
+
+	// Records a visit to a state. Returns false if it was already searched in this iteration at no higher cost.
+	private boolean firstVisit(GameState state) {
+		long hash = state.getZobristHash();
+		int slot = (int)(hash ^ (hash >>> 32)) & tableMask;
+		if (seenIterations[slot] == iteration && seenHashes[slot] == hash) {
+			if (seenCosts[slot] <= state.getCost()) {
+				metrics.recordDuplicate();
+				return false;
+			}
+			metrics.recordReopening();
+		}
+		seenIterations[slot] = iteration;
+		seenHashes[slot] = hash;
+		seenCosts[slot] = state.getCost();
+		return true;
+	}
+}
@@ -0,0 +1,347 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+import edu.cwru.sepia.environment.model.state.ResourceNode.Type;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The parts of the game that never change during planning: the map extent, the town hall, the goal amounts and the
+ * location and type of every resource node. One instance is built from the initial StateView and shared by every
+ * GameState in the search, so child states only need to copy the values that can actually change.
+ *
+ * Resources are referred to by their index into the arrays held here. Map cells are referred to by a single int,
+ * y * xExtent + x, and the matching Position objects are cached so accessors never have to allocate them.
+ *
+ * Travel distances come from a DistanceOracle built over the initial occupancy grid. Its targets are the resources,
+ * by index, followed by the town hall. A ResourceGrid answers which resource is on or next to a cell.
+ *
+ * The actions made on the map are interned here as well, see ActionFactory, so every state reaching the same action
+ * shares one instance of it. So are the options of the search over the map, which keeps searches that run at the
+ * same time, each with its own layout, from seeing each other's options.
+ */
+public class MapLayout {
+
+	private final int xExtent;					// The horizontal extent of the map
+	private final int yExtent;					// The vertical extent of the map
+	private final Position[] cells;				// Cached positions, indexed by cell
+
+	private final Position townHallPosition;	// The position of the town hall unit
+	private final int townHallID;				// The id of the town hall
+
+	private final int requiredGold;				// The required amount of gold
+	private final int requiredWood;				// The required amount of wood
+	private final boolean buildPeasant;			// The build peasant condition
+
+	private final int[] resourceIDs;				// The SEPIA ids of the resource nodes
+	private final Position[] resourcePositions;	// The positions of the resource nodes
+	private final GameState.Resource[] resourceTypes;	// The type of each resource node
+	private final int[] initialAmounts;			// The amount each resource node starts with
+	private final boolean[] blocked;			// The cells peasants can not walk through
+	
+	private final DistanceOracle distances;		// Path lengths around resources and buildings
+	private final ResourceGrid grid;				// Resource lookups by cell
+	private final ActionTable actions;			// The actions made on this map, see ActionFactory
+
+	private volatile LongAdder heuristicTimer;	// Collects the nanoseconds spent in the heuristic, if set
+	private volatile GameState.MacroMode macroMode = GameState.MacroMode.NONE;	// Which harvest actions are generated
+	private volatile int parallelChildThreshold = 32;	// Branching factor to build children in parallel at
+
+	/**
+	 * Reads the static parts of the map from the state view.
+	 *
+	 * @param state The current stateview at the time the plan is being created
+	 * @param townHallPosition The position of the planning player's town hall
+	 * @param townHallID The id of the planning player's town hall
+	 * @param requiredGold The goal amount of gold
+	 * @param requiredWood The goal amount of wood
+	 * @param buildPeasant True if the BuildPeasant action should be considered
+	 */
+	public MapLayout(State.StateView state, Position townHallPosition, int townHallID,
+			int requiredGold, int requiredWood, boolean buildPeasant) {
+		this.xExtent = state.getXExtent();
+		this.yExtent = state.getYExtent();
+		this.townHallPosition = townHallPosition;
+		this.townHallID = townHallID;
+		this.requiredGold = requiredGold;
+		this.requiredWood = requiredWood;
+		this.buildPeasant = buildPeasant;
+
+		// Cache one position object per cell
+		this.cells = new Position[xExtent * yExtent];
+		for (int y = 0; y < yExtent; y++) {
+			for (int x = 0; x < xExtent; x++) {
+				cells[y * xExtent + x] = new Position(x, y);
+			}
+		}
+
+		// Keep only gold mines and trees
+		List<ResourceView> resources = new ArrayList<ResourceView>();
+		for (ResourceView resource : state.getAllResourceNodes()) {
+			if (resource.getType() == Type.GOLD_MINE || resource.getType() == Type.TREE) {
+				resources.add(resource);
+			}
+		}
+
+		int count = resources.size();
+		this.resourceIDs = new int[count];
+		this.resourcePositions = new Position[count];
+		this.resourceTypes = new GameState.Resource[count];
+		this.initialAmounts = new int[count];
+		for (int i = 0; i < count; i++) {
+			ResourceView resource = resources.get(i);
+			resourceIDs[i] = resource.getID();
+			resourcePositions[i] = positionOf(cellOf(resource.getXPosition(), resource.getYPosition()));
+			resourceTypes[i] = resource.getType() == Type.GOLD_MINE ? GameState.Resource.GOLD : GameState.Resource.WOOD;
+			initialAmounts[i] = resource.getAmountRemaining();
+		}
+
+		// Resources and buildings block movement, peasants only start out somewhere
+		this.blocked = new boolean[xExtent * yExtent];
+		for (Position position : resourcePositions) {
+			blocked[cellOf(position)] = true;
+		}
+		List<Integer> startCells = new ArrayList<Integer>();
+		for (UnitView unit : state.getAllUnits()) {
+			int cell = cellOf(unit.getXPosition(), unit.getYPosition());
+			if (unit.getTemplateView().getName().equals("Peasant")) {
+				startCells.add(cell);
+			}
+			else {
+				blocked[cell] = true;
+			}
+		}
+		int[] targetCells = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			targetCells[i] = cellOf(resourcePositions[i]);
+		}
+		targetCells[count] = cellOf(townHallPosition);
+		int[] starts = new int[startCells.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = startCells.get(i);
+		}
+		this.distances = new DistanceOracle(xExtent, yExtent, blocked, targetCells, starts);
+		this.grid = new ResourceGrid(xExtent, yExtent, Arrays.copyOf(targetCells, count), resourceTypes,
+				distances, distances.getSourceCells());
+		this.actions = new ActionTable(1 << 10);
+	}
+
+	/**
+	 * Writes everything the planner reads from the map and the goal, so that two layouts that write the same bytes
+	 * plan the same way. Used to fingerprint planning problems, see GameState.getFingerprint.
+	 *
+	 * @param out Where to write
+	 */
+	void writeFingerprint(DataOutput out) throws IOException {
+		out.writeInt(xExtent);
+		out.writeInt(yExtent);
+		out.writeInt(townHallID);
+		out.writeInt(cellOf(townHallPosition));
+		out.writeInt(requiredGold);
+		out.writeInt(requiredWood);
+		out.writeBoolean(buildPeasant);
+		out.writeInt(resourceIDs.length);
+		for (int i = 0; i < resourceIDs.length; i++) {
+			out.writeInt(resourceIDs[i]);
+			out.writeInt(cellOf(resourcePositions[i]));
+			out.writeInt(resourceTypes[i].ordinal());
+		}
+		for (int cell = 0; cell < blocked.length; cell++) {
+			if (blocked[cell]) {
+				out.writeInt(cell);
+			}
+		}
+	}
+
+	public int getXExtent() {
+		return xExtent;
+	}
+
+	public int getYExtent() {
+		return yExtent;
+	}
+
+	public Position getTownHallPosition() {
+		return townHallPosition;
+	}
+
+	public int getTownHallID() {
+		return townHallID;
+	}
+
+	public int getRequiredGold() {
+		return requiredGold;
+	}
+
+	public int getRequiredWood() {
+		return requiredWood;
+	}
+
+	public boolean isBuildPeasant() {
+		return buildPeasant;
+	}
+
+	public int getResourceCount() {
+		return resourceIDs.length;
+	}
+
+	public int getResourceID(int resource) {
+		return resourceIDs[resource];
+	}
+
+	public Position getResourcePosition(int resource) {
+		return resourcePositions[resource];
+	}
+
+	public GameState.Resource getResourceType(int resource) {
+		return resourceTypes[resource];
+	}
+
+	public int getInitialAmount(int resource) {
+		return initialAmounts[resource];
+	}
+
+	public DistanceOracle getDistanceOracle() {
+		return distances;
+	}
+
+	public ResourceGrid getResourceGrid() {
+		return grid;
+	}
+
+	/**
+	 * @return The actions made on this map so far, by the key ActionFactory packs each one into
+	 */
+	public ActionTable getActionTable() {
+		return actions;
+	}
+
+	/**
+	 * @return The counter the heuristic time of every state on this map is added to, or null if it is not timed
+	 */
+	public LongAdder getHeuristicTimer() {
+		return heuristicTimer;
+	}
+
+	/**
+	 * Times the heuristic of every state on this map from now on, see SearchMetrics.
+	 *
+	 * @param heuristicTimer The counter to add nanoseconds to, or null to stop timing
+	 */
+	public void setHeuristicTimer(LongAdder heuristicTimer) {
+		this.heuristicTimer = heuristicTimer;
+	}
+
+	/**
+	 * @return Which harvest actions GameState.generateChildren offers on this map
+	 */
+	public GameState.MacroMode getMacroMode() {
+		return macroMode;
+	}
+
+	/**
+	 * Sets whether generateChildren offers whole harvest trips as single GatherCycle actions on this map. MIXED
+	 * offers them on top of the primitive actions, so it makes the search wider, not faster.
+	 *
+	 * @param macroMode NONE for primitive actions only, MIXED for both, ONLY for harvest trips only
+	 */
+	public void setMacroMode(GameState.MacroMode macroMode) {
+		this.macroMode = macroMode;
+	}
+
+	/**
+	 * @return The smallest branching factor GameState.generateChildren builds children in parallel for
+	 */
+	public int getParallelChildThreshold() {
+		return parallelChildThreshold;
+	}
+
+	/**
+	 * Sets the number of children above which generateChildren builds them on the fork-join common pool.
+	 *
+	 * @param parallelChildThreshold The smallest branching factor to build children in parallel for
+	 */
+	public void setParallelChildThreshold(int parallelChildThreshold) {
+		this.parallelChildThreshold = parallelChildThreshold;
+	}
+
+	/**
+	 * @return The oracle target index of the town hall
+	 */
+	public int getTownHallTarget() {
+		return resourceIDs.length;
+	}
+
+	/**
+	 * Where a peasant built by the town hall is assumed to appear. SEPIA places it on a free cell next to the town
+	 * hall, the first such cell is used for planning.
+	 *
+	 * @return The position, or null if there is no free cell next to the town hall
+	 */
+	public Position getPeasantSpawnPosition() {
+		int[] standCells = distances.getStandCells(getTownHallTarget());
+		return standCells.length == 0 ? null : positionOf(standCells[0]);
+	}
+
+	/**
+	 * The number of steps a peasant needs to walk between two positions, going around resources and buildings.
+	 *
+	 * @return The number of steps, or DistanceOracle.UNREACHABLE if there is no path
+	 */
+	public int travelDistance(Position from, Position to) {
+		return distances.distance(cellOf(from), cellOf(to));
+	}
+
+	/**
+	 * Picks where a peasant should stand to reach a target with the shortest walk.
+	 *
+	 * @param from The position of the peasant
+	 * @param target A resource index, or getTownHallTarget()
+	 * @return The free position next to the target closest to the peasant, or null if none can be reached
+	 */
+	public Position nearestAdjacentPosition(Position from, int target) {
+		int cell = distances.nearestStandCell(cellOf(from), target);
+		return cell < 0 ? null : positionOf(cell);
+	}
+
+	/**
+	 * @return The oracle target index of the resource or building at a position, or -1 if there is none
+	 */
+	public int targetAt(Position position) {
+		if (position.equals(townHallPosition)) {
+			return getTownHallTarget();
+		}
+		if (!position.inBounds(xExtent, yExtent)) {
+			return -1;
+		}
+		return grid.resourceAt(cellOf(position));
+	}
+
+	/**
+	 * @return The cell index of the given coordinates
+	 */
+	public int cellOf(int x, int y) {
+		return y * xExtent + x;
+	}
+
+	/**
+	 * @return The cell index of the given position
+	 */
+	public int cellOf(Position position) {
+		return cellOf(position.x, position.y);
+	}
+
+	/**
+	 * @return The cached position object for the given cell index
+	 */
+	public Position positionOf(int cell) {
+		return cells[cell];
+	}
+}
@@ -0,0 +1,213 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeSet;
+
+/**
+ * Simplified memory-bounded A* (SMA*). Works like A* on a search tree, but never keeps more than a fixed number of
+ * nodes. When the cap is passed, the leaf with the highest f-value (the shallowest one among ties) is dropped, and its
+ * f-value is remembered by its parent. Whenever the lowest f-value a node remembers is as low as any of its children
+ * in memory, the node can be expanded again, with the rest of the leaves, and then only the children that are not in
+ * memory are made again.
+ *
+ * f-values are backed up: a node's f-value is raised to the lowest of its children's and its dropped children's, so
+ * it is always a lower bound on any plan through it. Plans are optimal as long as the cap leaves room for the optimal
+ * path and the children along it. The cap is never passed for longer than one expansion: if no leaf can be dropped
+ * after one, the search stops without a plan.
+ *
+ * The nodes in memory are also indexed by state, and a child that is already in memory at no higher cost is not added
+ * again, since the copy in memory covers every plan through it.
+ */
+public class MemoryBoundedSearch {
+
+	private final int maxNodes;		// The most nodes kept at once
+	private final SearchMetrics metrics;	// Counts the work done, counting repeated expansions
+
+	private TreeSet<Node> leaves;	// The leaves and the nodes to make dropped children again, best first and worst last
+	private Map<Long, Node> inMemory;	// The nodes in memory by state hash
+	private int nodeCount;			// The number of nodes in memory
+	private long nextId;			// Numbers nodes in the order they are made, to break ties
+
+	/**
+	 * @param maxNodes The most search nodes to keep in memory at once
+	 * @param metrics The metrics to record the search in
+	 */
+	public MemoryBoundedSearch(int maxNodes, SearchMetrics metrics) {
+		this.maxNodes = Math.max(2, maxNodes);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Searches for a cheapest plan from the given state.
+	 *
+	 * @param startState The state which is being planned from
+	 * @return The plan, or null if no plan exists
+	 */
+	public Stack<StripsAction> search(GameState startState) {
+		leaves = new TreeSet<Node>(BEST_FIRST);
+		inMemory = new HashMap<Long, Node>();
+		nodeCount = 0;
+		nextId = 0;
+
+		Node root = new Node(startState, null, startState.getEstimate());
+		leaves.add(root);
+		inMemory.put(startState.getZobristHash(), root);
+		nodeCount = 1;
+
+		while (!leaves.isEmpty()) {
+			Node best = leaves.first();
+			if (best.f == Double.POSITIVE_INFINITY) {
+				break;
+			}
+			if (best.state.isGoal()) {
+				System.out.println("SMA* expanded " + metrics.getNodesExpanded() + " states with at most " + maxNodes + " nodes");
+				return best.state.getPlan();
+			}
+			leaves.remove(best);
+			expand(best);
+
+			// Make room by forgetting the worst leaves, but never the one just expanded into. When nothing else can go,
+			// the path in memory fills the cap and no plan fits within it.
+			while (nodeCount > maxNodes) {
+				Node worst = worstLeaf(best);
+				if (worst == null) {
+					System.out.println("SMA*: no plan within the node limit of " + maxNodes);
+					return null;
+				}
+				forget(worst);
+			}
+			metrics.recordOpenListSize(leaves.size());
+		}
+
+		System.out.println("SMA*: no plan found");
+		return null;
+	}
+
+	// Returns the leaf with the highest f-value that can be dropped, or null if there is none. Nodes that still have
+	// children in memory, the root and the only child of the node just expanded can not be dropped.
+	private Node worstLeaf(Node expanded) {
+		for (Node node : leaves.descendingSet()) {
+			if (node.children.isEmpty() && node.parent != null &&
+					!(node.parent == expanded && expanded.children.size() == 1)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	// Adds the children of a node that are not in memory. The ones still in memory are found in the state index and
+	// skipped. A node with no children left is given an infinite f-value.
+	private void expand(Node node) {
+		node.forgottenF = Double.POSITIVE_INFINITY;
+		List<GameState> children = node.state.generateChildren();
+		metrics.recordExpansion();
+		metrics.recordGenerated(children.size());
+		for (GameState child : children) {
+			Node copy = inMemory.get(child.getZobristHash());
+			if (copy != null && copy.state.getCost() <= child.getCost()) {
+				metrics.recordDuplicate();
+				continue;
+			}
+			if (copy != null) {
+				metrics.recordReopening();
+			}
+			// A child can not promise less than its parent did
+			Node added = new Node(child, node, Math.max(node.f, child.getEstimate()));
+			node.children.add(added);
+			leaves.add(added);
+			inMemory.put(child.getZobristHash(), added);
+			nodeCount++;
+		}
+		backUp(node);
+	}
+
+	// Drops a leaf, leaving its f-value with its parent
+	private void forget(Node leaf) {
+		leaves.remove(leaf);
+		if (inMemory.get(leaf.state.getZobristHash()) == leaf) {
+			inMemory.remove(leaf.state.getZobristHash());
+		}
+		nodeCount--;
+
+		Node parent = leaf.parent;
+		parent.children.remove(leaf);
+		parent.forgottenF = Math.min(parent.forgottenF, leaf.f);
+		backUp(parent);
+	}
+
+	// Raises the f-values from a node up to the root to the lowest of their children's and dropped children's. A node
+	// goes with the leaves while a dropped child is as good as any child in memory, so the dropped child is made again
+	// before the search settles for a worse sibling. A node left without children is a dead end, kept as a leaf with
+	// an infinite f-value so it is the first to go.
+	private void backUp(Node node) {
+		if (node.children.isEmpty() && node.forgottenF == Double.POSITIVE_INFINITY) {
+			leaves.remove(node);
+			node.f = Double.POSITIVE_INFINITY;
+			leaves.add(node);
+			node = node.parent;
+		}
+		while (node != null) {
+			double lowestChild = Double.POSITIVE_INFINITY;
+			for (Node child : node.children) {
+				lowestChild = Math.min(lowestChild, child.f);
+			}
+			double lowest = Math.min(lowestChild, node.forgottenF);
+			boolean raise = lowest > node.f;
+			boolean eligible = node.forgottenF != Double.POSITIVE_INFINITY && node.forgottenF <= lowestChild;
+			if (!raise && eligible == leaves.contains(node)) {
+				return;
+			}
+			// The leaves are sorted by f-value, so a node is taken out before its f-value changes
+			leaves.remove(node);
+			if (raise) {
+				node.f = lowest;
+			}
+			if (eligible) {
+				leaves.add(node);
+			}
+			if (!raise) {
+				return;
+			}
+			node = node.parent;
+		}
+	}
+
+	// Leaves with the lowest f-value first, the deepest first among ties, so the last one is the one to drop
+	private static final Comparator<Node> BEST_FIRST = new Comparator<Node>() {
+		@Override
+		public int compare(Node a, Node b) {
+			int byF = Double.compare(a.f, b.f);
+			if (byF != 0) {
+				return byF;
+			}
+			int byDepth = Integer.compare(b.depth, a.depth);
+			return byDepth != 0 ? byDepth : Long.compare(a.id, b.id);
+		}
+	};
+
+	private class Node {
+
+		private final GameState state;
+		private final Node parent;
+		private final int depth;
+		private final long id;
+		private final List<Node> children = new ArrayList<Node>();
+		private double f;									// The backed up cost plus heuristic
+		private double forgottenF = Double.POSITIVE_INFINITY;	// The lowest f-value of the dropped children
+
+		Node(GameState state, Node parent, double f) {
+			this.state = state;
+			this.parent = parent;
+			this.depth = parent == null ? 0 : parent.depth + 1;
+			this.id = nextId++;
+			this.f = f;
+		}
+	}
+}
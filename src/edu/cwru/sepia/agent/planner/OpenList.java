@@ -0,0 +1,32 @@
+package edu.cwru.sepia.agent.planner;
+
+/**
+ * The open list of the A* search. Implementations decide how states with the same estimate are ordered, but must
+ * always return a state with the lowest estimate first.
+ */
+public interface OpenList {
+
+	/**
+	 * Adds a state to the open list.
+	 *
+	 * @param state The state to add
+	 */
+	public void offer(GameState state);
+
+	/**
+	 * Removes and returns a state with the lowest cost plus heuristic.
+	 *
+	 * @return The next state to expand, or null if the list is empty
+	 */
+	public GameState poll();
+
+	/**
+	 * @return The number of states in the open list
+	 */
+	public int size();
+
+	/**
+	 * @return True if there are no states left to expand
+	 */
+	public boolean isEmpty();
+}
@@ -14,8 +14,14 @@ import edu.cwru.sepia.util.Direction;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 /**
@@ -26,6 +32,36 @@ public class PEAgent extends Agent {
     // The plan being executed
     private Stack<StripsAction> plan = null;
 
+    // The rest of a plan read from a file, taken once the stack is empty, or null
+    private PlanReader.Cursor planFile = null;
+
+    // The number of times a failed move is tried again before it is given up
+    private static final int MOVE_RETRIES = 3;
+
+    // The actions taken off the plan and not finished yet, in plan order and by their position in the plan
+    private List<Step> window = new ArrayList<Step>();
+    private Map<Integer, Step> windowByIndex = new HashMap<Integer, Step>();
+    private int taken;                  // The number of actions taken off the plan since it was last made or repaired
+
+    // The number of steps in the window that are not moves, and the position in the plan of the last action, by the
+    // plan id of each unit
+    private Map<Integer, Integer> waitingSteps = new HashMap<Integer, Integer>();
+    private Map<Integer, Integer> lastSteps;
+
+    // The step each unit is carrying out, by SEPIA id, while its current primitive action is in progress
+    private Map<Integer, Step> busy = new HashMap<Integer, Step>();
+
+    // The planner lets peasants share a cell, SEPIA does not, so moves are sent elsewhere when their cell is taken
+    private Map<Integer, Position> plannedPositions = new HashMap<Integer, Position>();  // Where the plan puts each unit
+    private Map<Integer, Position> destinations = new HashMap<Integer, Position>();      // Where moving units will end
+    // Which actions each action of the plan waits for, null to take the actions one at a time
+    private PlanSchedule schedule = null;
+
+    // The execution monitor, null when the plan is followed blindly
+    private PlanRepair repair = null;
+    private MapLayout layout;           // The layout the plan was made with
+    private boolean diverged;           // True once the game has strayed from the plan, until it is repaired
+
     // maps the real unit Ids to the plan's unit ids
     // when you're planning you won't know the true unit IDs that sepia assigns. So you'll use placeholders (1, 2, 3).
     // this maps those placeholders to the actual unit IDs.
@@ -37,7 +73,53 @@ public class PEAgent extends Agent {
         super(playernum);
         peasantIdMap = new HashMap<Integer, Integer>();
         this.plan = plan;
+        this.lastSteps = lastSteps(plan);
+    }
+
+    /**
+     * Executes a plan read from a binary plan file. Actions are taken from the file as they are needed.
+     * @param planFile A cursor at the first action of the plan
+     */
+    public PEAgent(int playernum, PlanReader.Cursor planFile) {
+        this(playernum, new Stack<StripsAction>());
+        this.planFile = planFile;
+        this.lastSteps = planFile.lastActionByUnit();
+    }
+
+    /**
+     * Schedules the plan, so that each action starts as soon as the actions it depends on are done rather than after
+     * every action before it.
+     * @param startState The state the plan starts from
+     * @param planned The actions of the plan in order, copies of the ones being executed
+     */
+    public void schedule(GameState startState, List<StripsAction> planned) {
+        try {
+            schedule = new PlanSchedule(startState, planned);
+            System.out.println("Plan makespan " + schedule.getMakespan() + ", " + schedule.getSerialCost() +
+                    " one action at a time");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Not scheduling the plan: " + e.getMessage());
+            schedule = null;
+        }
+    }
 
+    /**
+     * Turns on the execution monitor. Each action of the plan is checked against the game before it is started, and
+     * if it can not be taken or SEPIA reports that an action failed, the plan is repaired from the state the game is
+     * in once every unit is done with what it was doing.
+     * @param startState The state the plan was made from
+     * @param planned The actions of the plan in order, copies of the ones being executed
+     * @param maxExpansions The most states a repair may expand
+     */
+    public void monitor(GameState startState, List<StripsAction> planned, int maxExpansions) {
+        try {
+            repair = new PlanRepair(startState, planned, maxExpansions);
+            layout = startState.getLayout();
+            diverged = false;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Not monitoring the plan: " + e.getMessage());
+            repair = null;
+        }
     }
 
     @Override
@@ -96,58 +178,440 @@ public class PEAgent extends Agent {
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
     	Map<Integer, Action> actions = new HashMap<Integer, Action>();
+    	mapBuiltPeasants(stateView);
     	
+    	// Every unit runs on its own, so completion is tracked per unit
     	if (stateView.getTurnNumber() != 0) {
     		Map<Integer, ActionResult> actionResults = 
     				historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-
-    		boolean readyToContinue = true;
-    		for (ActionResult result : actionResults.values()) {
-    			ActionFeedback feed = result.getFeedback();
-    			if (feed.name().equals("INCOMPLETE")) {
-    				readyToContinue = false;
+    		for (Integer unitID : new ArrayList<Integer>(busy.keySet())) {
+    			ActionResult result = actionResults.get(unitID);
+    			ActionFeedback feed = result == null ? ActionFeedback.COMPLETED : result.getFeedback();
+    			if (feed != ActionFeedback.INCOMPLETE) {
+    				finishPrimitive(busy.remove(unitID), feed);
     			}
     		}
-    		
-    		if (readyToContinue && !plan.isEmpty()) {
-        		StripsAction stripsAction = plan.pop();
-        		Action sepiaAction = createSepiaAction(stripsAction);
-        		actions.put(stripsAction.getUnitID(), sepiaAction);
-    		}
     	}
-    	else if (!plan.isEmpty()) {
-    		StripsAction stripsAction = plan.pop();
-    		Action sepiaAction = createSepiaAction(stripsAction);
-    		actions.put(stripsAction.getUnitID(), sepiaAction);
+    	
+    	if (diverged) {
+    		// Nothing new is started until every unit is done and the plan can be repaired from a settled state
+    		if (busy.isEmpty()) {
+    			repairPlan(stateView);
+    		}
+    		if (diverged) {
+    			return actions;
+    		}
     	}
     	
+    	fillWindow();
+    	issueActions(actions, stateView);
         return actions;
     }
+    
+    /**
+     * Records the end of the primitive action a unit was taking. A step is finished with its last primitive action,
+     * or at once if SEPIA reports a failure.
+     * @param step The step the action belongs to
+     * @param feed How the action ended
+     */
+    private void finishPrimitive(Step step, ActionFeedback feed) {
+    	StripsAction primitive = step.primitives.peekFirst();
+    	if (primitive instanceof ActionFactory.MoveAction) {
+    		destinations.remove(realUnitID(step.action));
+    		// A move fails when another unit is in the way, which it usually is not for long
+    		if (feed == ActionFeedback.FAILED && step.moveRetries++ < MOVE_RETRIES) {
+    			return;
+    		}
+    	}
+    	step.primitives.pollFirst();
+    	step.moveRetries = 0;
+    	if (primitive instanceof ActionFactory.HarvestAction) {
+    		step.harvested = true;
+    	}
+    	if (feed == ActionFeedback.FAILED) {
+    		// The rest of a trip was planned from where this action should have left the peasant
+    		step.primitives.clear();
+    		diverged |= repair != null;
+    	}
+    	if (step.primitives.isEmpty()) {
+    		window.remove(step);
+    		windowByIndex.remove(step.index);
+    		if (!(step.action instanceof ActionFactory.MoveAction)) {
+    			waitingSteps.computeIfPresent(step.action.getUnitID(), (unit, count) -> count > 1 ? count - 1 : null);
+    		}
+    	}
+    }
+    
+    /**
+     * Takes actions off the plan until every peasant with actions left in the plan has one to carry out besides
+     * moves, or the plan runs out. That way the window always shows what a peasant does at the end of a move, and
+     * peasants the plan is done with do not pull the rest of it in.
+     */
+    private void fillWindow() {
+    	while (hasNextAction()) {
+    		boolean waiting = true;
+    		for (int planID : peasantIdMap.keySet()) {
+    			waiting &= waitingSteps.containsKey(planID) || !hasActionsLeft(planID);
+    		}
+    		if (waiting) {
+    			return;
+    		}
+    		Step step = new Step(plan.isEmpty() ? planFile.next() : plan.pop(), taken++);
+    		window.add(step);
+    		windowByIndex.put(step.index, step);
+    		if (!(step.action instanceof ActionFactory.MoveAction)) {
+    			waitingSteps.merge(step.action.getUnitID(), 1, Integer::sum);
+    		}
+    	}
+    }
+    
+    /**
+     * @param planID The plan id of a unit
+     * @return True if the plan has actions for the unit that have not been taken off it yet
+     */
+    private boolean hasActionsLeft(int planID) {
+    	Integer last = lastSteps.get(planID);
+    	return last != null && last >= taken;
+    }
+    
+    /**
+     * @param plan A plan with its first action on top
+     * @return The position in the plan of the last action of each unit, by plan id
+     */
+    private static Map<Integer, Integer> lastSteps(Stack<StripsAction> plan) {
+    	Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+    	for (int i = 0; i < plan.size(); i++) {
+    		last.putIfAbsent(plan.get(i).getUnitID(), plan.size() - 1 - i);
+    	}
+    	return last;
+    }
+    
+    /**
+     * Gives every unit that is free the next primitive action of its current step, or starts its next step. Each
+     * unit takes its own actions in plan order, and a step starts once the steps the schedule has it wait for are
+     * done, which runs the plan along the schedule's timeline.
+     * @param actions The actions to issue this turn, by unit id
+     * @param stateView The current state
+     */
+    private void issueActions(Map<Integer, Action> actions, State.StateView stateView) {
+    	Set<Integer> claimed = new HashSet<Integer>();
+    	for (int i = 0; i < window.size() && !diverged; i++) {
+    		Step step = window.get(i);
+    		int unitID = realUnitID(step.action);
+    		// Only the first unfinished step of a unit may act, and only while the unit is free
+    		if (unitID < 0 || !claimed.add(unitID) || busy.containsKey(unitID)) {
+    			continue;
+    		}
+    		if (!step.started && (!dependenciesMet(i) || !startStep(step, stateView)) || !harvestMayStart(i)) {
+    			continue;
+    		}
+    		busy.put(unitID, step);
+    		actions.put(unitID, placeAction(i, unitID, stateView));
+    	}
+    }
+    
+    /**
+     * Makes the SEPIA action for the next primitive action of a step. A move to a cell that is taken, or that
+     * another unit is on its way to, goes to a free cell next to the same resource or town hall instead, and the
+     * harvest or deposit after it faces that resource or town hall from where the unit really is.
+     * @param index The index in the window of the step
+     * @param unitID The SEPIA id of the unit taking the action
+     * @param stateView The current state
+     * @return The SEPIA action
+     */
+    private Action placeAction(int index, int unitID, State.StateView stateView) {
+    	Step step = window.get(index);
+    	StripsAction action = step.primitives.peekFirst();
+    	Unit.UnitView unit = stateView.getUnit(unitID);
+    	Position at = new Position(unit.getXPosition(), unit.getYPosition());
+    	if (action instanceof ActionFactory.MoveAction) {
+    		Position planned = ((ActionFactory.MoveAction)action).getActionPosition();
+    		Position destination = freeCell(planned, targetAfter(index), at, unitID, stateView);
+    		plannedPositions.put(unitID, planned);
+    		destinations.put(unitID, destination);
+    		return Action.createCompoundMove(unitID, destination.x, destination.y);
+    	}
+    	
+    	Direction planned = action instanceof ActionFactory.HarvestAction ?
+    			((ActionFactory.HarvestAction)action).getDirection() :
+    			action instanceof ActionFactory.DepositAction ? ((ActionFactory.DepositAction)action).getDirection() : null;
+    	// A harvest or deposit the monitor just checked already faces its target from where the unit is
+    	boolean checked = repair != null && step.action == action;
+    	Position plannedAt = plannedPositions.get(unitID);
+    	if (planned != null && plannedAt != null && !plannedAt.equals(at) && !checked) {
+    		Position target = plannedAt.move(planned);
+    		if (target.isAdjacent(at) && !target.equals(at)) {
+    			return action instanceof ActionFactory.HarvestAction ?
+    					Action.createPrimitiveGather(unitID, at.getDirection(target)) :
+    					Action.createPrimitiveDeposit(unitID, at.getDirection(target));
+    		}
+    	}
+    	return createSepiaAction(action, unitID);
+    }
+    
+    /**
+     * @param index The index in the window of a step whose next primitive action is a move
+     * @return The resource or town hall the unit faces once the move is done, or null if it faces neither
+     */
+    private Position targetAfter(int index) {
+    	Step step = window.get(index);
+    	Position destination = ((ActionFactory.MoveAction)step.primitives.peekFirst()).getActionPosition();
+    	StripsAction after = null;
+    	if (step.primitives.size() > 1) {
+    		after = new ArrayList<StripsAction>(step.primitives).get(1);
+    	}
+    	else {
+    		// In a plan of primitive actions the next action of the unit is a step of its own
+    		for (int i = index + 1; i < window.size() && after == null; i++) {
+    			if (window.get(i).action.getUnitID() == step.action.getUnitID()) {
+    				after = window.get(i).action;
+    			}
+    		}
+    	}
+    	if (after instanceof ActionFactory.HarvestAction && ((ActionFactory.HarvestAction)after).getDirection() != null) {
+    		return destination.move(((ActionFactory.HarvestAction)after).getDirection());
+    	}
+    	if (after instanceof ActionFactory.DepositAction && ((ActionFactory.DepositAction)after).getDirection() != null) {
+    		return destination.move(((ActionFactory.DepositAction)after).getDirection());
+    	}
+    	return null;
+    }
+    
+    /**
+     * @param planned The cell the plan moves the unit to
+     * @param target The resource or town hall the unit faces from there, or null
+     * @param from Where the unit is
+     * @param unitID The SEPIA id of the unit
+     * @param stateView The current state
+     * @return The planned cell if it is free, otherwise the free cell next to the target, or to the planned cell if
+     *         there is no target, that is closest to the unit
+     */
+    private Position freeCell(Position planned, Position target, Position from, int unitID, State.StateView stateView) {
+    	if (isFree(planned, unitID, stateView)) {
+    		return planned;
+    	}
+    	Position best = planned;
+    	int bestDistance = Integer.MAX_VALUE;
+    	for (Position cell : (target != null ? target : planned).getAdjacentPositions()) {
+    		int distance = cell.chebyshevDistance(from);
+    		if (distance < bestDistance && isFree(cell, unitID, stateView)) {
+    			best = cell;
+    			bestDistance = distance;
+    		}
+    	}
+    	return best;
+    }
+    
+    /**
+     * @return True if the cell is on the map, holds nothing but maybe the unit itself, and no other unit is going there
+     */
+    private boolean isFree(Position cell, int unitID, State.StateView stateView) {
+    	if (!stateView.inBounds(cell.x, cell.y) || stateView.isResourceAt(cell.x, cell.y)) {
+    		return false;
+    	}
+    	if (stateView.isUnitAt(cell.x, cell.y) && stateView.unitAt(cell.x, cell.y) != unitID) {
+    		return false;
+    	}
+    	for (Map.Entry<Integer, Position> destination : destinations.entrySet()) {
+    		if (destination.getKey() != unitID && destination.getValue().equals(cell)) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Starts a step, breaking a harvest trip into the moves, harvest and deposit it is made of. When the plan is
+     * monitored, the step is first made again from the game and checked against it, so that a unit standing next to
+     * where the plan has it still finds its target.
+     * @param step The step
+     * @param stateView The current state
+     * @return True if the step was started, false if the game has strayed from the plan
+     */
+    private boolean startStep(Step step, State.StateView stateView) {
+    	if (repair != null) {
+    		GameState live = new GameState(layout, stateView, playernum, planIDs());
+    		StripsAction current = ActionFactory.remake(step.action, live);
+    		if (current == null || !current.preconditionsMet(live)) {
+    			diverged = true;
+    			return false;
+    		}
+    		step.action = current;
+    	}
+    	if (step.action instanceof ActionFactory.GatherCycleAction) {
+    		step.primitives.addAll(((ActionFactory.GatherCycleAction)step.action).getPrimitiveActions());
+    	}
+    	else {
+    		step.primitives.add(step.action);
+    	}
+    	step.started = true;
+    	return true;
+    }
+    
+    /**
+     * @param index The index in the window of a step
+     * @return True if every step the schedule has this one wait for is done
+     */
+    private boolean dependenciesMet(int index) {
+    	if (schedule == null) {
+    		return index == 0;
+    	}
+    	for (int earlier : schedule.getDependencies(window.get(index).index)) {
+    		if (stepAt(earlier) != null) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * @param index The index in the window of a started step
+     * @return True unless the next primitive action of the step is a harvest that has to wait for another one
+     */
+    private boolean harvestMayStart(int index) {
+    	Step step = window.get(index);
+    	if (schedule == null || !(step.primitives.peekFirst() instanceof ActionFactory.HarvestAction)) {
+    		return true;
+    	}
+    	int earlier = schedule.getHarvestDependency(step.index);
+    	Step other = earlier < 0 ? null : stepAt(earlier);
+    	return other == null || other.harvested;
+    }
+    
+    /**
+     * @param index The position of an action in the plan
+     * @return The step of the action, or null if it is done
+     */
+    private Step stepAt(int index) {
+    	return windowByIndex.get(index);
+    }
+    
+    /**
+     * Repairs the plan from the state the game is in, once every unit is done with what it was doing. The steps not
+     * finished yet are dropped in favour of the repaired plan. If no repair is found the plan is followed as it is.
+     * @param stateView The current state
+     */
+    private void repairPlan(State.StateView stateView) {
+    	GameState live = new GameState(layout, stateView, playernum, planIDs());
+    	int first = window.isEmpty() ? taken : window.get(0).index;
+    	List<StripsAction> repaired = repair.repair(live, first);
+    	diverged = false;
+    	if (repaired == null) {
+    		System.err.println("Not monitoring the plan any more, it could not be repaired");
+    		repair = null;
+    		return;
+    	}
+    	window.clear();
+    	windowByIndex.clear();
+    	waitingSteps.clear();
+    	taken = 0;
+    	plan.clear();
+    	planFile = null;
+    	for (int i = repaired.size() - 1; i >= 0; i--) {
+    		plan.push(repaired.get(i));
+    	}
+    	lastSteps = lastSteps(plan);
+    	schedule(live, repaired);
+    	monitor(live, repaired, repair.getMaxExpansions());
+    }
+    
+    /**
+     * Maps peasants that have appeared since the last turn to the placeholder ids the planner gave them. The planner
+     * numbers built peasants -1, -2, ... in the order they are built, which is the order SEPIA makes them in.
+     * @param stateView The current state
+     */
+    private void mapBuiltPeasants(State.StateView stateView) {
+    	for (int unitId : stateView.getUnitIds(playernum)) {
+    		Unit.UnitView unit = stateView.getUnit(unitId);
+    		if (unit.getTemplateView().getName().toLowerCase().equals("peasant") &&
+    				!peasantIdMap.containsValue(unitId)) {
+    			int built = 0;
+    			for (int planID : peasantIdMap.keySet()) {
+    				if (planID < 0) {
+    					built++;
+    				}
+    			}
+    			peasantIdMap.put(-(built + 1), unitId);
+    		}
+    	}
+    }
+    
+    /**
+     * @param action An action of the plan
+     * @return The SEPIA id of the unit taking the action, or -1 if it has not been built yet
+     */
+    private int realUnitID(StripsAction action) {
+    	if (action instanceof ActionFactory.BuildPeasantAction) {
+    		return townhallId;
+    	}
+    	Integer unitID = peasantIdMap.get(action.getUnitID());
+    	return unitID == null ? -1 : unitID;
+    }
+
+    /**
+     * @return True if there are actions left on the stack or in the plan file
+     */
+    private boolean hasNextAction() {
+    	return !plan.isEmpty() || planFile != null && planFile.hasNext();
+    }
+
+    /**
+     * @return The id the plan uses for each peasant, by SEPIA id
+     */
+    private Map<Integer, Integer> planIDs() {
+    	Map<Integer, Integer> planIDs = new HashMap<Integer, Integer>();
+    	for (Map.Entry<Integer, Integer> entry : peasantIdMap.entrySet()) {
+    		planIDs.put(entry.getValue(), entry.getKey());
+    	}
+    	return planIDs;
+    }
 
     /**
      * Returns a SEPIA version of the specified Strips Action.
      * @param action StripsAction
+     * @param unitID The SEPIA id of the unit taking the action
      * @return SEPIA representation of same action
      */
-    private Action createSepiaAction(StripsAction action) {
+    private Action createSepiaAction(StripsAction action, int unitID) {
     	Action sepiaAction = null;
     	if (action instanceof ActionFactory.MoveAction) {
     		ActionFactory.MoveAction move = (ActionFactory.MoveAction)action;
     		Position movePos = move.getActionPosition();
-    		sepiaAction = Action.createCompoundMove(move.getUnitID(), movePos.x, movePos.y);
+    		sepiaAction = Action.createCompoundMove(unitID, movePos.x, movePos.y);
     	}
     	else if (action instanceof ActionFactory.DepositAction) {
     		ActionFactory.DepositAction deposit = (ActionFactory.DepositAction)action;
-    		sepiaAction = Action.createPrimitiveDeposit(deposit.getUnitID(), deposit.getDirection());
+    		sepiaAction = Action.createPrimitiveDeposit(unitID, deposit.getDirection());
     	}
     	else if (action instanceof ActionFactory.HarvestAction) {
     		ActionFactory.HarvestAction harvest = (ActionFactory.HarvestAction)action;
-    		sepiaAction = Action.createPrimitiveGather(harvest.getUnitID(), harvest.getDirection());
+    		sepiaAction = Action.createPrimitiveGather(unitID, harvest.getDirection());
+    	}
+    	else if (action instanceof ActionFactory.BuildPeasantAction) {
+    		sepiaAction = Action.createPrimitiveProduction(unitID, peasantTemplateId);
     	}
     	System.out.println(action.toString());
         return sepiaAction;
     }
 
+    /**
+     * An action of the plan on its way through execution.
+     */
+    private static class Step {
+
+        private StripsAction action;        // As planned, or as made again from the game when it started
+        private final int index;            // The position of the action in the plan
+        private final Deque<StripsAction> primitives = new ArrayDeque<StripsAction>();  // Left to take, once started
+        private boolean started;
+        private boolean harvested;          // True once the step's harvest is done
+        private int moveRetries;            // The number of times the current move has been tried again
+
+        Step(StripsAction action, int index) {
+            this.action = action;
+            this.index = index;
+        }
+    }
+
     @Override
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
 
@@ -0,0 +1,187 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Stack;
+
+/**
+ * Partial expansion A* (PEA*). A state has many children, one for every combination of its peasants' actions, and A*
+ * keeps all of them on the open list although most are never taken off it. Here a node is stored with a value F,
+ * which starts as its f-value. Expanding it keeps only the children whose f-value is at most F plus a cutoff, and
+ * puts the node back on the open list with F raised to the lowest f-value of the children left out. For those the
+ * node keeps only their f-values, sorted, and their places in the list of joint actions. If the search comes back to
+ * the node, only the joint actions of the children up to the new F are made again, by their places, and no other
+ * child's f-value is worked out again.
+ *
+ * Every child's f-value is worked out once, in one scratch state, so only the children kept are allocated as states.
+ * Every state kept has an f-value no higher than the node it came from was taken off at, so states are taken off in
+ * the same order of f as in A* and the plans are as cheap. A larger cutoff keeps more children per expansion and so
+ * comes back to fewer nodes.
+ */
+public class PartialExpansionSearch {
+
+	private final double cutoff;			// How far above F a child's f-value may be and still be kept
+	private final SearchMetrics metrics;	// Counts the work done, counting repeated expansions
+
+	/**
+	 * @param cutoff How much higher than the node's F a child's f-value may be to be kept, 0 for plain PEA*
+	 * @param metrics The metrics to record the search in
+	 */
+	public PartialExpansionSearch(double cutoff, SearchMetrics metrics) {
+		this.cutoff = Math.max(0, cutoff);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Searches for a cheapest plan from the given state.
+	 *
+	 * @param startState The state which is being planned from
+	 * @return The plan, or null if no plan exists
+	 */
+	public Stack<StripsAction> search(GameState startState) {
+		ClosedTable closed = new ClosedTable(1 << 16);
+		PriorityQueue<Node> open = new PriorityQueue<Node>();
+		closed.offer(startState.getZobristHash(), startState.getCost());
+		open.offer(new Node(startState, startState.getEstimate()));
+
+		// The state every child is first made in, to learn its f-value
+		GameState scratch = new GameState(startState, Collections.<StripsAction>emptyList());
+
+		while (!open.isEmpty()) {
+			Node node = open.poll();
+
+			// Skip stale entries, the state has since been reached more cheaply
+			if (node.state.getCost() > closed.getCost(node.state.getZobristHash())) {
+				continue;
+			}
+
+			if (node.state.isGoal()) {
+				System.out.println("PEA* expanded " + metrics.getNodesExpanded() + " states with at most " +
+						metrics.getPeakOpenListSize() + " open");
+				return node.state.getPlan();
+			}
+
+			// Keep the children within reach of F that improve on every earlier visit to their state, and put the
+			// node back for the rest
+			double limit = node.f + cutoff;
+			int generated = node.childF == null ? expandFirst(node, limit, scratch, closed, open) :
+					expandAgain(node, limit, closed, open);
+			metrics.recordExpansion();
+			metrics.recordGenerated(generated);
+			if (node.next < node.childF.length) {
+				node.f = node.childF[node.next];
+				open.offer(node);
+			}
+			metrics.recordOpenListSize(open.size());
+		}
+
+		System.out.println("PEA*: no plan found");
+		return null;
+	}
+
+	// Works out every child's f-value in the scratch state, keeps the children up to the limit and sorts the rest for
+	// later. Returns the number of children kept.
+	private int expandFirst(Node node, double limit, GameState scratch, ClosedTable closed, PriorityQueue<Node> open) {
+		List<List<StripsAction>> joints = node.state.generateJointActions();
+		double[] restF = new double[joints.size()];
+		int[] restIndex = new int[joints.size()];
+		int rest = 0;
+		int generated = 0;
+		for (int i = 0; i < joints.size(); i++) {
+			scratch.resetToChild(node.state, joints.get(i));
+			double f = scratch.getEstimate();
+			if (f == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (f > limit) {
+				restF[rest] = f;
+				restIndex[rest++] = i;
+				continue;
+			}
+			generated++;
+			// Only a child that improves on every earlier visit to its state is allocated
+			if (improves(scratch.getZobristHash(), scratch.getCost(), closed)) {
+				open.offer(new Node(new GameState(node.state, joints.get(i)), f));
+			}
+		}
+		sortRest(restF, restIndex, rest);
+		node.childF = Arrays.copyOf(restF, rest);
+		node.childIndex = Arrays.copyOf(restIndex, rest);
+		return generated;
+	}
+
+	// Keeps the children left out last time that are now within the limit. Returns the number of children kept.
+	private int expandAgain(Node node, double limit, ClosedTable closed, PriorityQueue<Node> open) {
+		int end = node.next;
+		while (end < node.childF.length && node.childF[end] <= limit) {
+			end++;
+		}
+		
+		// The joint actions are made in the order of their places, the children are kept in the order of f
+		int[] positions = Arrays.copyOfRange(node.childIndex, node.next, end);
+		Arrays.sort(positions);
+		List<List<StripsAction>> joints = node.state.generateJointActions(positions);
+		for (; node.next < end; node.next++) {
+			List<StripsAction> joint = joints.get(Arrays.binarySearch(positions, node.childIndex[node.next]));
+			GameState child = new GameState(node.state, joint);
+			if (improves(child.getZobristHash(), child.getCost(), closed)) {
+				open.offer(new Node(child, node.childF[node.next]));
+			}
+		}
+		return positions.length;
+	}
+
+	// Returns true if a child improves on every earlier visit to its state, recording it in the closed table
+	private boolean improves(long hash, double cost, ClosedTable closed) {
+		boolean seen = closed.getCost(hash) != Double.POSITIVE_INFINITY;
+		if (!closed.offer(hash, cost)) {
+			metrics.recordDuplicate();
+			return false;
+		}
+		if (seen) {
+			metrics.recordReopening();
+		}
+		return true;
+	}
+
+	// Sorts the first count f-values, moving the joint action indices along with them. Each index is keyed by the rank
+	// of its f-value, so both sorts are on primitives.
+	private static void sortRest(double[] f, int[] index, int count) {
+		double[] sorted = Arrays.copyOf(f, count);
+		Arrays.sort(sorted);
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = (long)Arrays.binarySearch(sorted, f[i]) << 32 | index[i];
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < count; i++) {
+			f[i] = sorted[(int)(keys[i] >>> 32)];
+			index[i] = (int)keys[i];
+		}
+	}
+
+	private static class Node implements Comparable<Node> {
+
+		private final GameState state;
+		private double f;			// The state's f-value, then the lowest f-value of the children not kept yet
+		private double[] childF;	// The f-values of the children left out at the first expansion, lowest first
+		private int[] childIndex;	// The place of each of those children in the list of joint actions
+		private int next;			// The first of those children not kept yet
+
+		Node(GameState state, double f) {
+			this.state = state;
+			this.f = f;
+		}
+
+		// Lowest F first, then as the states order themselves
+		@Override
+		public int compareTo(Node o) {
+			int byF = Double.compare(f, o.f);
+			return byF != 0 ? byF : state.compareTo(o.state);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.ActionFactory;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Plans kept across episodes and runs, keyed by the fingerprint of the start state and the search options. SEPIA
+ * plays the same map with the same goal episode after episode, so every plan after the first can be taken from here.
+ *
+ * Plans are held in memory and appended to a file, one plan per line: the key, a tab and the actions separated by
+ * semicolons. A later line for a key replaces an earlier one. Actions are stored by what is needed to make them again
+ * (the unit, the destination of a move, the resource of a harvest or a trip), and a stored plan is replayed from the
+ * start state each time it is handed out. That works out the directions again, hands out the same interned action
+ * objects the search makes (see ActionFactory), and drops a plan that no longer reaches the goal.
+ *
+ * Keys start with VERSION, so plans stored by a planner that may plan differently are never handed out.
+ */
+public class PlanCache {
+
+	// Part of every key. Raise it whenever a change to the planner can give a different plan for the same problem,
+	// such as a change to the heuristic, or when the encoding of actions changes.
+	private static final int VERSION = 2;
+
+	private static final Map<String, PlanCache> caches = new HashMap<String, PlanCache>();
+
+	private final File file;						// Where plans are persisted
+	private Map<String, List<String>> plans;		// The encoded actions of each plan by key, read on first use
+
+	private PlanCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file The file plans are kept in
+	 * @return The cache for the file, the same one for every caller in this JVM
+	 */
+	public static synchronized PlanCache forFile(File file) {
+		String path = file.getAbsolutePath();
+		PlanCache cache = caches.get(path);
+		if (cache == null) {
+			cache = new PlanCache(file);
+			caches.put(path, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * @param startState The state the plan starts from
+	 * @param options Anything else that changes the plan, such as the search options
+	 * @return The key to store the plan for the state under, for this version of the planner
+	 */
+	public static String keyOf(GameState startState, Map<String, String> options) {
+		StringBuilder key = new StringBuilder("v").append(VERSION).append(' ').append(startState.getFingerprint());
+		List<String> names = new ArrayList<String>(options.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			key.append(' ').append(name).append('=').append(options.get(name));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Looks up the plan for a start state.
+	 *
+	 * @param startState The state the plan starts from
+	 * @param key The key of the plan, see keyOf
+	 * @return A fresh copy of the plan, or null if there is none or the stored one does not reach the goal
+	 */
+	public synchronized Stack<StripsAction> get(GameState startState, String key) {
+		List<String> encoded = plans().get(key);
+		if (encoded == null) {
+			return null;
+		}
+
+		// Replay the plan, which checks it and resolves the directions each action is taken in from the state
+		List<StripsAction> actions = new ArrayList<StripsAction>();
+		GameState state = startState;
+		for (String line : encoded) {
+			StripsAction action = decode(line, state);
+			if (action == null || !action.preconditionsMet(state)) {
+				plans.remove(key);
+				return null;
+			}
+			state = new GameState(state, Collections.singletonList(action));
+			actions.add(action);
+		}
+		if (!state.isGoal()) {
+			plans.remove(key);
+			return null;
+		}
+
+		Stack<StripsAction> plan = new Stack<StripsAction>();
+		for (int i = actions.size() - 1; i >= 0; i--) {
+			plan.push(actions.get(i));
+		}
+		return plan;
+	}
+
+	/**
+	 * Stores a plan in memory and appends it to the file.
+	 *
+	 * @param key The key of the plan, see keyOf
+	 * @param plan The plan, with the first action on top
+	 */
+	public synchronized void put(String key, Stack<StripsAction> plan) {
+		List<String> encoded = new ArrayList<String>();
+		for (int i = plan.size() - 1; i >= 0; i--) {
+			String line = encode(plan.get(i));
+			if (line == null) {
+				System.err.println("Not caching a plan with an unknown action: " + plan.get(i));
+				return;
+			}
+			encoded.add(line);
+		}
+		plans().put(key, encoded);
+
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		PrintWriter outputWriter = null;
+		try {
+			outputWriter = new PrintWriter(new FileWriter(file, true));
+			outputWriter.println(key + "\t" + String.join(";", encoded));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (outputWriter != null)
+				outputWriter.close();
+		}
+	}
+
+	// Returns the plans, reading the file the first time
+	private Map<String, List<String>> plans() {
+		if (plans != null) {
+			return plans;
+		}
+		plans = new HashMap<String, List<String>>();
+		if (!file.exists()) {
+			return plans;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0) {
+					continue;
+				}
+				List<String> encoded = new ArrayList<String>();
+				for (String action : line.substring(tab + 1).split(";")) {
+					if (!action.isEmpty()) {
+						encoded.add(action);
+					}
+				}
+				plans.put(line.substring(0, tab), encoded);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return plans;
+	}
+
+	// Writes an action as its name and the arguments that make it again, or returns null for an unknown action
+	private static String encode(StripsAction action) {
+		if (action instanceof ActionFactory.MoveAction) {
+			Position position = ((ActionFactory.MoveAction)action).getActionPosition();
+			return "Move " + action.getUnitID() + " " + position.x + " " + position.y;
+		}
+		if (action instanceof ActionFactory.DepositAction) {
+			return "Deposit " + action.getUnitID();
+		}
+		if (action instanceof ActionFactory.HarvestAction) {
+			return "Harvest " + action.getUnitID() + " " + ((ActionFactory.HarvestAction)action).getResource();
+		}
+		if (action instanceof ActionFactory.GatherCycleAction) {
+			return "GatherCycle " + action.getUnitID() + " " + ((ActionFactory.GatherCycleAction)action).getResource();
+		}
+		if (action instanceof ActionFactory.BuildPeasantAction) {
+			return "BuildPeasant";
+		}
+		return null;
+	}
+
+	// Makes an action from its encoding in the state it is taken in, or returns null if it can not be read or made
+	private static StripsAction decode(String line, GameState state) {
+		String[] parts = line.trim().split(" ");
+		try {
+			switch (parts[0]) {
+			case "Move":
+				return ActionFactory.makeMoveAction(state, Integer.parseInt(parts[1]),
+						new Position(Integer.parseInt(parts[2]), Integer.parseInt(parts[3])));
+			case "Deposit":
+				return ActionFactory.makeDepositAction(state, Integer.parseInt(parts[1]));
+			case "Harvest":
+				return ActionFactory.makeHarvestAction(state, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			case "GatherCycle":
+				return ActionFactory.makeGatherCycleAction(state, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			case "BuildPeasant":
+				return ActionFactory.makeBuildAction(state);
+			default:
+				return null;
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.ActionFactory;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+import edu.cwru.sepia.util.Direction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+
+import static edu.cwru.sepia.agent.planner.PlanWriter.*;
+
+/**
+ * Reads a plan written by PlanWriter. The file is mapped into memory rather than read, and actions are only made as a
+ * Cursor reaches their records, so a plan of any length is opened at once and never copied.
+ */
+public class PlanReader {
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+	private static final GameState.Resource[] RESOURCES = GameState.Resource.values();
+
+	private final ByteBuffer records;	// The whole file, mapped
+	private final String fingerprint;	// The fingerprint of the start state, in hex
+	private final double cost;
+	private final int count;
+
+	private PlanReader(ByteBuffer records, String fingerprint, double cost, int count) {
+		this.records = records;
+		this.fingerprint = fingerprint;
+		this.cost = cost;
+		this.count = count;
+	}
+
+	/**
+	 * Maps a plan file and checks its header.
+	 *
+	 * @param file The file to read
+	 * @return The reader
+	 * @throws IOException If the file can not be read or is not a plan of this version
+	 */
+	public static PlanReader open(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		MappedByteBuffer mapped;
+		try {
+			// The mapping stays valid once the channel is closed
+			mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+		} finally {
+			input.close();
+		}
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a plan file");
+		}
+		if (mapped.getShort(VERSION_OFFSET) != VERSION || mapped.getShort(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+			throw new IOException(file + " is a plan of version " + mapped.getShort(VERSION_OFFSET) + ", not " +
+					VERSION);
+		}
+		int count = mapped.getInt(COUNT_OFFSET);
+		if (count < 0 || mapped.limit() < HEADER_SIZE + (long)count * RECORD_SIZE) {
+			throw new IOException(file + " is cut short");
+		}
+
+		StringBuilder fingerprint = new StringBuilder();
+		for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+			fingerprint.append(String.format("%02x", mapped.get(FINGERPRINT_OFFSET + i)));
+		}
+		return new PlanReader(mapped, fingerprint.toString(), mapped.getDouble(COST_OFFSET), count);
+	}
+
+	/**
+	 * @return The fingerprint of the state the plan starts from, compare to GameState.getFingerprint
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return The cost of the plan as the search gave it, taking the actions of each joint step together
+	 */
+	public double getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return The number of primitive actions in the plan
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return A cursor at the first action of the plan
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * @return Every action of the plan, with the first on top
+	 */
+	public Stack<StripsAction> toPlan() {
+		Stack<StripsAction> plan = new Stack<StripsAction>();
+		for (int i = count - 1; i >= 0; i--) {
+			plan.push(actionAt(i));
+		}
+		return plan;
+	}
+
+	// Makes the action of a record, straight from the mapped file
+	private StripsAction actionAt(int index) {
+		int start = HEADER_SIZE + index * RECORD_SIZE;
+		int unitID = records.getInt(start + UNIT_OFFSET);
+		int direction = records.get(start + DIRECTION_OFFSET);
+		Direction towards = direction == 0 ? null : DIRECTIONS[direction - 1];
+		switch (records.get(start + OPCODE_OFFSET)) {
+		case MOVE:
+			return ActionFactory.makeMoveAction(unitID,
+					new Position(records.getShort(start + X_OFFSET), records.getShort(start + Y_OFFSET)));
+		case DEPOSIT:
+			return ActionFactory.makeDepositAction(unitID, towards);
+		case HARVEST:
+			return ActionFactory.makeHarvestAction(unitID, RESOURCES[records.get(start + TYPE_OFFSET)],
+					records.getInt(start + RESOURCE_OFFSET), towards);
+		case BUILD_PEASANT:
+			return ActionFactory.makeBuildAction(unitID);
+		default:
+			throw new IllegalStateException("Unknown opcode in record " + index);
+		}
+	}
+
+	/**
+	 * Steps through the actions of the plan in order.
+	 */
+	public class Cursor {
+
+		private int next;	// The index of the next record
+
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		/**
+		 * @return The next action
+		 */
+		public StripsAction next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return actionAt(next++);
+		}
+
+		/**
+		 * @return The number of actions left
+		 */
+		public int remaining() {
+			return count - next;
+		}
+
+		/**
+		 * Finds the last action of every unit from the cursor on. Only the unit ids of the records are read, no
+		 * actions are made.
+		 *
+		 * @return The position of the last action of each unit, counted from the cursor, by the unit's plan id
+		 */
+		public Map<Integer, Integer> lastActionByUnit() {
+			Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+			for (int i = next; i < count; i++) {
+				last.put(records.getInt(HEADER_SIZE + i * RECORD_SIZE + UNIT_OFFSET), i - next);
+			}
+			return last;
+		}
+	}
+}
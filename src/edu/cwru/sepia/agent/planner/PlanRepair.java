@@ -0,0 +1,222 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Repairs a plan after execution has strayed from it. The plan is replayed once, when the repair is made, which gives
+ * every state along it together with the cost still to go from there. The plan is replayed in the joint steps the
+ * search took: at each planned state, the actions that make up one of the joint actions generateChildren offers
+ * there are taken together, at the cost of the longest, the way the search scored them. The planned states are then
+ * states a repair search can reach, and the costs to go are on the same measure as its own costs, and exact as long
+ * as the plan is optimal, so they are a far better estimate than the heuristic. An action that is not part of any
+ * joint action offered, as in a plan made with other search options, is replayed on its own; the costs to go are
+ * then only as good as that plan.
+ *
+ * A repair is an A* search from the state the game is actually in, in which every planned state still ahead counts as
+ * a goal with its known cost to go, as well as the real goals. The search usually meets the plan again a few actions
+ * ahead, and the repaired plan is the actions found followed by the rest of the old plan from where it was met. This
+ * is the reuse of earlier g and h values that Lifelong Planning A* and D* Lite rely on, fitted to a game whose start
+ * moves and whose goal is any state with enough resources, where those algorithms do not apply directly.
+ */
+public class PlanRepair {
+
+	private final List<StripsAction> plan;		// The actions of the plan, in order
+	private final List<GameState> planned;		// The state before each joint step, and after the last
+	private final int[] actionIndex;			// The index of the first action of the step after each planned state
+	private final double[] costToGo;			// The cost of the rest of the plan from each planned state
+	private final Map<Long, List<Integer>> byHash;	// The planned states by Zobrist hash, as indices
+	private final int maxExpansions;			// The most states a repair expands before giving up
+
+	/**
+	 * Replays a plan to learn the states along it, grouping its actions into the joint steps the search took.
+	 *
+	 * @param startState The state the plan starts from
+	 * @param plan The actions of the plan in order, each taken in the state the ones before it lead to
+	 * @param maxExpansions The most states a repair may expand
+	 * @throws IllegalArgumentException If the plan can not be taken from the start state
+	 */
+	public PlanRepair(GameState startState, List<StripsAction> plan, int maxExpansions) {
+		this.plan = new ArrayList<StripsAction>(plan);
+		this.planned = new ArrayList<GameState>(plan.size() + 1);
+		this.byHash = new HashMap<Long, List<Integer>>();
+		this.maxExpansions = maxExpansions;
+
+		List<Integer> stepStarts = new ArrayList<Integer>(plan.size() + 1);
+		GameState state = startState;
+		int i = 0;
+		while (i < plan.size()) {
+			int size = jointStepSize(state, i);
+			if (size == 0) {
+				StripsAction action = plan.get(i);
+				if (!action.preconditionsMet(state)) {
+					throw new IllegalArgumentException("The plan can not take " + action + " as its action " + i);
+				}
+				size = 1;
+			}
+			planned.add(state);
+			stepStarts.add(i);
+			state = new GameState(state, new ArrayList<StripsAction>(plan.subList(i, i + size)));
+			i += size;
+		}
+		planned.add(state);
+		stepStarts.add(plan.size());
+
+		// The replayed states add up the cost of the plan as they go
+		this.actionIndex = new int[planned.size()];
+		this.costToGo = new double[planned.size()];
+		for (i = 0; i < planned.size(); i++) {
+			actionIndex[i] = stepStarts.get(i);
+			costToGo[i] = state.getCost() - planned.get(i).getCost();
+		}
+		for (i = 0; i < planned.size(); i++) {
+			long hash = planned.get(i).getZobristHash();
+			List<Integer> indices = byHash.get(hash);
+			if (indices == null) {
+				indices = new ArrayList<Integer>(1);
+				byHash.put(hash, indices);
+			}
+			indices.add(i);
+		}
+	}
+
+	// Returns how many of the plan's actions from an index on make up a joint action the search offers in a state,
+	// the most if several do, or 0 if none does. Actions read back from a file are not the objects the search makes,
+	// so a joint action is matched by its units and by the state it leads to.
+	private int jointStepSize(GameState state, int index) {
+		int best = 0;
+		for (List<StripsAction> joint : state.generateJointActions()) {
+			int size = joint.size();
+			if (size <= best || index + size > plan.size()) {
+				continue;
+			}
+			List<StripsAction> step = plan.subList(index, index + size);
+			boolean matches = true;
+			for (int a = 0; a < size && matches; a++) {
+				StripsAction action = step.get(a);
+				matches = action.getUnitID() == joint.get(a).getUnitID() &&
+						action.getClass() == joint.get(a).getClass() && action.preconditionsMet(state);
+			}
+			if (matches && new GameState(state, joint).equals(
+					new GameState(state, new ArrayList<StripsAction>(step)))) {
+				best = size;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The cost of the plan replayed in joint steps, the cost of the goal state for a plan the search made
+	 */
+	public double getCost() {
+		return costToGo[0];
+	}
+
+	/**
+	 * @return The number of actions in the plan
+	 */
+	public int size() {
+		return plan.size();
+	}
+
+	public int getMaxExpansions() {
+		return maxExpansions;
+	}
+
+	/**
+	 * Searches for a way from the state the game is in back onto the plan or to a goal.
+	 *
+	 * @param live The state of the game
+	 * @param index The index of the first action not taken yet; only planned states from there on are rejoined. A
+	 * plan is only rejoined between joint steps.
+	 * @return The repaired rest of the plan in order, or null if none was found within the expansion limit
+	 */
+	public List<StripsAction> repair(GameState live, int index) {
+		long start = System.nanoTime();
+		ClosedTable closed = new ClosedTable(1 << 10);
+		PriorityQueue<Node> open = new PriorityQueue<Node>();
+		closed.offer(live.getZobristHash(), live.getCost());
+		open.offer(node(live, index));
+
+		int expanded = 0;
+		while (!open.isEmpty() && expanded < maxExpansions) {
+			Node node = open.poll();
+			if (node.state.getCost() > closed.getCost(node.state.getZobristHash())) {
+				continue;
+			}
+
+			if (node.rejoin >= 0 || node.state.isGoal()) {
+				List<StripsAction> repaired = pathFrom(live, node.state);
+				if (node.rejoin >= 0) {
+					repaired.addAll(plan.subList(node.rejoin, plan.size()));
+				}
+				System.out.println("plan repaired after " + expanded + " expansions in " +
+						(System.nanoTime() - start) / 1000000L + " ms, " +
+						(node.rejoin >= 0 ? "rejoining at action " + node.rejoin : "with a new plan"));
+				return repaired;
+			}
+
+			for (GameState child : node.state.generateChildren()) {
+				if (closed.offer(child.getZobristHash(), child.getCost())) {
+					open.offer(node(child, index));
+				}
+			}
+			expanded++;
+		}
+
+		System.out.println("plan repair gave up after " + expanded + " expansions");
+		return null;
+	}
+
+	// Wraps a state, checking whether it is a planned state at or after the given action index
+	private Node node(GameState state, int index) {
+		List<Integer> indices = byHash.get(state.getZobristHash());
+		if (indices != null) {
+			for (int i = indices.size() - 1; i >= 0; i--) {
+				int rejoin = indices.get(i);
+				if (actionIndex[rejoin] >= index && state.equals(planned.get(rejoin))) {
+					return new Node(state, state.getCost() + costToGo[rejoin], actionIndex[rejoin]);
+				}
+			}
+		}
+		return new Node(state, state.getEstimate(), -1);
+	}
+
+	// The actions from a state to one of its descendants, in order
+	private static List<StripsAction> pathFrom(GameState ancestor, GameState state) {
+		List<StripsAction> path = new ArrayList<StripsAction>();
+		for (GameState s = state; s != ancestor && s != null; s = s.getParentState()) {
+			List<StripsAction> actions = s.getLastActions();
+			for (int i = actions.size() - 1; i >= 0; i--) {
+				path.add(actions.get(i));
+			}
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	private static class Node implements Comparable<Node> {
+
+		private final GameState state;
+		private final double f;		// The cost so far plus the known or estimated cost to go
+		private final int rejoin;	// The index of the plan's action to go on from if this is a planned state, or -1
+
+		Node(GameState state, double f, int rejoin) {
+			this.state = state;
+			this.f = f;
+			this.rejoin = rejoin;
+		}
+
+		@Override
+		public int compareTo(Node o) {
+			int byF = Double.compare(f, o.f);
+			return byF != 0 ? byF : state.compareTo(o.state);
+		}
+	}
+}
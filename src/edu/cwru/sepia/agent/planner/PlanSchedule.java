@@ -0,0 +1,186 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.ActionFactory;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A partial order over the actions of a plan, and the earliest time each action can start in it. The plan the search
+ * returns is a total order, but an action only has to wait for the actions whose effects it uses: the action before
+ * it by the same unit (for a built peasant's first action, the build that made it), the gold deposits that pay for a
+ * build, taken in plan order until there is enough, and the harvest of the same resource before a harvest, so that
+ * every harvest takes the load the plan expects.
+ *
+ * The plan is replayed once to learn the duration of each action and the gold each deposit brings, and every action
+ * adds at most a few edges, so the schedule takes time linear in the length of the plan. Each unit does its actions
+ * one after another and there is no other limit on what runs at once, so starting every action as soon as its
+ * dependencies allow gives the shortest makespan for that order.
+ */
+public class PlanSchedule {
+
+	private static final int PEASANT_GOLD_COST = ActionFactory.BuildPeasantAction.GOLD_COST;
+
+	private final double[] start;		// The earliest time each action can start
+	private final double[] duration;	// The time each action takes
+	private final int[][] after;		// The actions each action waits to finish, by index
+	private final int[] harvestAfter;	// The action whose harvest each action's harvest follows, or -1
+	private final double makespan;
+
+	/**
+	 * Replays a plan and works out its dependencies and schedule.
+	 *
+	 * @param startState The state the plan starts from
+	 * @param plan The actions of the plan in order, each taken in the state the ones before it lead to
+	 * @throws IllegalArgumentException If the plan can not be taken from the start state
+	 */
+	public PlanSchedule(GameState startState, List<StripsAction> plan) {
+		int size = plan.size();
+		this.start = new double[size];
+		this.duration = new double[size];
+		this.after = new int[size][];
+		this.harvestAfter = new int[size];
+		double[] harvestOffset = new double[size];	// The time into each action its harvest is taken
+
+		Map<Integer, Integer> lastByUnit = new HashMap<Integer, Integer>();		// The last action of each unit
+		Map<Integer, Integer> lastHarvest = new HashMap<Integer, Integer>();	// The last harvest of each resource
+		Map<Integer, Integer> builtBy = new HashMap<Integer, Integer>();		// The build making each new peasant
+		List<Integer> goldDeposits = new ArrayList<Integer>();	// The actions bringing in gold, in order
+		List<Integer> goldAmounts = new ArrayList<Integer>();	// The gold each of them brings
+		int paidFor = 0;	// The number of gold deposits the builds so far wait for
+		int gold = startState.getCurrentGold();	// The gold of those deposits and the start, less the builds
+		int builds = 0;
+
+		GameState state = startState;
+		double longest = 0;
+		for (int i = 0; i < size; i++) {
+			StripsAction action = plan.get(i);
+			if (!action.preconditionsMet(state)) {
+				throw new IllegalArgumentException("The plan can not take " + action + " as its action " + i);
+			}
+			duration[i] = action.getCost(state);
+			harvestOffset[i] = harvestOffset(action, state);
+
+			List<Integer> waits = new ArrayList<Integer>(2);
+			Integer previous = lastByUnit.get(action.getUnitID());
+			if (previous == null) {
+				previous = builtBy.get(action.getUnitID());
+			}
+			if (previous != null) {
+				waits.add(previous);
+			}
+			lastByUnit.put(action.getUnitID(), i);
+
+			if (action instanceof ActionFactory.BuildPeasantAction) {
+				// Wait for deposits in plan order until they pay for this build as well as the ones before it
+				while (gold < PEASANT_GOLD_COST && paidFor < goldDeposits.size()) {
+					waits.add(goldDeposits.get(paidFor));
+					gold += goldAmounts.get(paidFor++);
+				}
+				gold -= PEASANT_GOLD_COST;
+				builtBy.put(-(++builds), i);
+			}
+
+			int resource = harvestedResource(action);
+			harvestAfter[i] = -1;
+			if (resource >= 0) {
+				Integer earlier = lastHarvest.get(resource);
+				harvestAfter[i] = earlier == null ? -1 : earlier;
+				lastHarvest.put(resource, i);
+			}
+
+			GameState next = new GameState(state, Collections.singletonList(action));
+			if (next.getCurrentGold() > state.getCurrentGold()) {
+				goldDeposits.add(i);
+				goldAmounts.add(next.getCurrentGold() - state.getCurrentGold());
+			}
+			state = next;
+
+			after[i] = new int[waits.size()];
+			for (int w = 0; w < waits.size(); w++) {
+				int earlier = waits.get(w);
+				after[i][w] = earlier;
+				start[i] = Math.max(start[i], start[earlier] + duration[earlier]);
+			}
+			if (harvestAfter[i] >= 0) {
+				int earlier = harvestAfter[i];
+				start[i] = Math.max(start[i], start[earlier] + harvestOffset[earlier] + 1 - harvestOffset[i]);
+			}
+			longest = Math.max(longest, start[i] + duration[i]);
+		}
+		this.makespan = longest;
+	}
+
+	/**
+	 * @return The number of actions in the plan
+	 */
+	public int size() {
+		return start.length;
+	}
+
+	/**
+	 * @param index The index of an action in the plan
+	 * @return The earliest time the action can start
+	 */
+	public double getStart(int index) {
+		return start[index];
+	}
+
+	/**
+	 * @param index The index of an action in the plan
+	 * @return The indices of the actions that have to be finished before it starts
+	 */
+	public int[] getDependencies(int index) {
+		return after[index];
+	}
+
+	/**
+	 * @param index The index of an action in the plan
+	 * @return The index of the action whose harvest has to be taken before this action's harvest, or -1 if none
+	 */
+	public int getHarvestDependency(int index) {
+		return harvestAfter[index];
+	}
+
+	/**
+	 * @return The time from the start of the plan until its last action is done
+	 */
+	public double getMakespan() {
+		return makespan;
+	}
+
+	/**
+	 * @return The time the plan takes with its actions taken one at a time
+	 */
+	public double getSerialCost() {
+		double total = 0;
+		for (double time : duration) {
+			total += time;
+		}
+		return total;
+	}
+
+	// The resource an action harvests, or -1 if it harvests none
+	private static int harvestedResource(StripsAction action) {
+		if (action instanceof ActionFactory.HarvestAction) {
+			return ((ActionFactory.HarvestAction)action).getResource();
+		}
+		if (action instanceof ActionFactory.GatherCycleAction) {
+			return ((ActionFactory.GatherCycleAction)action).getResource();
+		}
+		return -1;
+	}
+
+	// The time into an action its harvest is taken: the walk to the resource of a harvest trip
+	private static double harvestOffset(StripsAction action, GameState state) {
+		if (action instanceof ActionFactory.GatherCycleAction) {
+			StripsAction first = ((ActionFactory.GatherCycleAction)action).getPrimitiveActions().get(0);
+			return first instanceof ActionFactory.MoveAction ? first.getCost(state) : 0;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,208 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.ActionFactory;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+import edu.cwru.sepia.util.Direction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Writes a plan in the binary plan format, one action at a time, read back with PlanReader.
+ *
+ * The file starts with a HEADER_SIZE byte header: the magic number, the format version, the record size, the
+ * fingerprint of the start state (see GameState.getFingerprint), the plan cost and the number of records. Each action
+ * then takes one RECORD_SIZE byte record: an opcode, a direction, a resource type, the unit id, the x and y of a move
+ * and the index of the resource harvested. Everything is little endian.
+ *
+ * The actions are replayed from the start state as they are written, which checks the plan and works out where each
+ * harvest trip goes. Trips are written as the moves, harvest and deposit they are made of, so every record can be
+ * executed as it is read. The cost in the header is the cost the search gave the plan, the cost of its goal state,
+ * with the actions of each joint step taken together at the cost of the longest. The count is filled in when the
+ * writer is closed.
+ */
+public class PlanWriter implements Closeable {
+
+	static final int MAGIC = 0x4E4C5053;	// "SPLN" read as a little endian int
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 56;
+	static final int RECORD_SIZE = 16;
+
+	// Header fields, by byte offset
+	static final int VERSION_OFFSET = 4;
+	static final int RECORD_SIZE_OFFSET = 6;
+	static final int FINGERPRINT_OFFSET = 8;
+	static final int FINGERPRINT_SIZE = 32;
+	static final int COST_OFFSET = 40;
+	static final int COUNT_OFFSET = 48;
+
+	// Record fields, by byte offset
+	static final int OPCODE_OFFSET = 0;
+	static final int DIRECTION_OFFSET = 1;
+	static final int TYPE_OFFSET = 2;
+	static final int UNIT_OFFSET = 4;
+	static final int X_OFFSET = 8;
+	static final int Y_OFFSET = 10;
+	static final int RESOURCE_OFFSET = 12;
+
+	static final byte MOVE = 1;
+	static final byte DEPOSIT = 2;
+	static final byte HARVEST = 3;
+	static final byte BUILD_PEASANT = 4;
+
+	private static final int BUFFERED_RECORDS = 256;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;	// Records not yet written to the file
+	private GameState state;			// The state the next action is taken in
+	private final double cost;			// The cost of the plan, for the header
+	private int count;					// The number of records written so far
+
+	/**
+	 * Creates the file and writes a header for an empty plan.
+	 *
+	 * @param file The file to write
+	 * @param startState The state the plan starts from
+	 * @param cost The cost of the plan, the cost of the goal state it leads to
+	 * @throws IOException If the file can not be written
+	 */
+	public PlanWriter(File file, GameState startState, double cost) throws IOException {
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		output.setLength(0);
+		this.channel = output.getChannel();
+		this.buffer = ByteBuffer.allocate(HEADER_SIZE + BUFFERED_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		this.state = startState;
+		this.cost = cost;
+
+		String fingerprint = startState.getFingerprint();
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short)RECORD_SIZE);
+		for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+			buffer.put((byte)Integer.parseInt(fingerprint.substring(2 * i, 2 * i + 2), 16));
+		}
+		buffer.putDouble(0);
+		buffer.putInt(0);
+		buffer.putInt(0);
+	}
+
+	/**
+	 * Writes a whole plan to a file.
+	 *
+	 * @param plan The plan, with the first action on top
+	 * @param file The file to write
+	 * @param startState The state the plan starts from
+	 * @param cost The cost of the plan, the cost of the goal state it leads to
+	 * @throws IOException If the file can not be written or the plan can not be taken from the start state
+	 */
+	public static void write(Stack<StripsAction> plan, File file, GameState startState, double cost)
+			throws IOException {
+		PlanWriter writer = new PlanWriter(file, startState, cost);
+		try {
+			for (int i = plan.size() - 1; i >= 0; i--) {
+				writer.write(plan.get(i));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the next action of the plan.
+	 *
+	 * @param action The action, taken in the state the earlier actions lead to
+	 * @throws IOException If the file can not be written or the action can not be taken
+	 */
+	public void write(StripsAction action) throws IOException {
+		if (!action.preconditionsMet(state)) {
+			throw new IOException("The plan can not take " + action + " in " + state.getResourceLevels());
+		}
+		List<StripsAction> primitives = action instanceof ActionFactory.GatherCycleAction ?
+				((ActionFactory.GatherCycleAction)action).getPrimitiveActions() : Collections.singletonList(action);
+		state = new GameState(state, Collections.singletonList(action));
+
+		for (StripsAction primitive : primitives) {
+			if (buffer.remaining() < RECORD_SIZE) {
+				flush();
+			}
+			writeRecord(primitive);
+			count++;
+		}
+	}
+
+	/**
+	 * Writes the buffered records and fills in the header.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			ByteBuffer totals = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			totals.putDouble(cost);
+			totals.putInt(count);
+			totals.flip();
+			channel.write(totals, COST_OFFSET);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void writeRecord(StripsAction action) {
+		int start = buffer.position();
+		Direction direction = null;
+		GameState.Resource type = GameState.Resource.NONE;
+		int x = 0;
+		int y = 0;
+		int resource = -1;
+		byte opcode;
+		if (action instanceof ActionFactory.MoveAction) {
+			Position position = ((ActionFactory.MoveAction)action).getActionPosition();
+			opcode = MOVE;
+			x = position.x;
+			y = position.y;
+		}
+		else if (action instanceof ActionFactory.DepositAction) {
+			opcode = DEPOSIT;
+			direction = ((ActionFactory.DepositAction)action).getDirection();
+		}
+		else if (action instanceof ActionFactory.HarvestAction) {
+			ActionFactory.HarvestAction harvest = (ActionFactory.HarvestAction)action;
+			opcode = HARVEST;
+			direction = harvest.getDirection();
+			type = harvest.getType();
+			resource = harvest.getResource();
+		}
+		else if (action instanceof ActionFactory.BuildPeasantAction) {
+			opcode = BUILD_PEASANT;
+		}
+		else {
+			throw new IllegalArgumentException("No record for " + action);
+		}
+
+		buffer.put(start + OPCODE_OFFSET, opcode);
+		buffer.put(start + DIRECTION_OFFSET, (byte)(direction == null ? 0 : direction.ordinal() + 1));
+		buffer.put(start + TYPE_OFFSET, (byte)type.ordinal());
+		buffer.put(start + TYPE_OFFSET + 1, (byte)0);
+		buffer.putInt(start + UNIT_OFFSET, action.getUnitID());
+		buffer.putShort(start + X_OFFSET, (short)x);
+		buffer.putShort(start + Y_OFFSET, (short)y);
+		buffer.putInt(start + RESOURCE_OFFSET, resource);
+		buffer.position(start + RECORD_SIZE);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -18,6 +18,20 @@ public class PlannerAgent extends Agent {
     final int requiredGold;
     final boolean buildPeasants;
 
+    // Optional search settings, passed as name=value arguments after the required ones
+    final Map<String, String> options;
+    final String openListType;
+    final int threads;
+    final String searchType;
+    final PlanCache planCache;
+    final boolean textPlan;
+    final boolean monitor;
+    final int parallelChildren;
+    final GameState.MacroMode macros;
+
+    // The counters of the last search, published over JMX while it runs
+    SearchMetrics metrics;
+
     // Your PEAgent implementation. This prevents you from having to parse the text file representation of your plan.
     PEAgent peAgent;
 
@@ -32,14 +46,104 @@ public class PlannerAgent extends Agent {
         requiredGold = Integer.parseInt(params[1]);
         buildPeasants = Boolean.parseBoolean(params[2]);
 
+        options = new HashMap<String, String>();
+        for (int i = 3; i < params.length; i++) {
+            int split = params[i].indexOf('=');
+            if (split < 0) {
+                System.err.println("Ignoring argument " + params[i] + ", options must have the form name=value");
+                continue;
+            }
+            options.put(params[i].substring(0, split).trim(), params[i].substring(split + 1).trim());
+        }
+
+        // "heap" for a binary heap ordered by f, "bucket" for integer f buckets
+        openListType = getOption("openList", "heap");
+
+        // More than one thread plans with hash distributed A*
+        threads = Integer.parseInt(getOption("threads", "1"));
+
+        // "astar" for A*, "ara" for anytime repairing A* within budget milliseconds, "ida" for iterative deepening A*
+        // and "sma" for simplified memory-bounded A*, both keeping at most nodes states, and "pea" for partial
+        // expansion A*, keeping the children up to cutoff above a node's value
+        searchType = getOption("search", "astar");
+
+        // Plans are kept in saves/plancache.txt and reused for the same map and goal, unless planCache=false
+        planCache = Boolean.parseBoolean(getOption("planCache", "true")) ?
+                PlanCache.forFile(new File("saves", "plancache.txt")) : null;
+
+        // Plans are written to saves/plan.bin for the PEAgent, and also as text to saves/plan.txt unless textPlan=false
+        textPlan = Boolean.parseBoolean(getOption("textPlan", "true"));
+
+        // The PEAgent checks the game against the plan and repairs the plan when they part, unless monitor=false
+        monitor = Boolean.parseBoolean(getOption("monitor", "true"));
+
+        // Expansions with at least this many children build them in parallel
+        parallelChildren = Integer.parseInt(getOption("parallelChildren", "32"));
+
+        // "none" plans with primitive actions, "mixed" adds whole harvest trips, "only" uses trips alone. Mixed widens
+        // the branching factor and usually expands far more states than either, see the README
+        macros = GameState.MacroMode.valueOf(getOption("macros", "none").toUpperCase());
 
         System.out.println("required wood: " + requiredWood + " required gold: " + requiredGold + " build Peasants: " + buildPeasants);
     }
 
+    // Sets the options that shape the children of every state on the map, repairs included. They go with the map of
+    // this agent, so agents planning at the same time keep their own.
+    private void applyOptions(MapLayout layout) {
+        layout.setParallelChildThreshold(parallelChildren);
+        layout.setMacroMode(macros);
+    }
+
+    // Returns the value of an optional argument, or the default if it was not given
+    private String getOption(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
     @Override
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
 
-        Stack<StripsAction> plan = AstarSearch(new GameState(stateView, playernum, requiredGold, requiredWood, buildPeasants));
+        GameState startState = new GameState(stateView, playernum, requiredGold, requiredWood, buildPeasants);
+        applyOptions(startState.getLayout());
+
+        // A plan file given with plan=path is executed without searching, if it was made for this start state
+        if (options.containsKey("plan")) {
+            PlanReader saved = readPlan(new File(options.get("plan")), startState);
+            if (saved != null) {
+                peAgent = new PEAgent(playernum, saved.cursor());
+                List<StripsAction> planned = toList(saved.toPlan());
+                peAgent.schedule(startState, planned);
+                if (monitor) {
+                    peAgent.monitor(startState, planned, repairExpansions());
+                }
+                return peAgent.initialStep(stateView, historyView);
+            }
+        }
+
+        // Every episode starts from the same state, so only the first one has to search
+        String cacheKey = null;
+        Stack<StripsAction> plan = null;
+        if (planCache != null) {
+            Map<String, String> planOptions = new HashMap<String, String>(options);
+            planOptions.remove("planCache");
+            planOptions.remove("plan");
+            planOptions.remove("textPlan");
+            planOptions.remove("monitor");
+            planOptions.remove("repairExpansions");
+            cacheKey = PlanCache.keyOf(startState, planOptions);
+            plan = planCache.get(startState, cacheKey);
+        }
+
+        boolean searched = plan == null;
+        if (searched) {
+            plan = search(startState);
+            if (plan != null && planCache != null) {
+                planCache.put(cacheKey, plan);
+            }
+        }
+        else {
+            System.out.println("plan found in the plan cache");
+        }
 
         if(plan == null) {
             System.err.println("No plan was found");
@@ -47,12 +151,22 @@ public class PlannerAgent extends Agent {
             return null;
         }
 
-        // write the plan to a text file
-        savePlan(plan);
-
+        // write the plan to a binary file and optionally a text file, and how the search went next to them
+        PlanReader written = saveBinaryPlan(plan, startState);
+        if (textPlan) {
+            savePlan(plan);
+        }
+        if (searched) {
+            saveMetrics(metrics);
+        }
 
-        // Instantiates the PEAgent with the specified plan.
-        peAgent = new PEAgent(playernum, plan);
+        // Instantiates the PEAgent with the specified plan, read back from the binary file when it could be written
+        peAgent = written != null ? new PEAgent(playernum, written.cursor()) : new PEAgent(playernum, plan);
+        List<StripsAction> planned = written != null ? toList(written.toPlan()) : toList(plan);
+        peAgent.schedule(startState, planned);
+        if (monitor) {
+            peAgent.monitor(startState, planned, repairExpansions());
+        }
 
         return peAgent.initialStep(stateView, historyView);
     }
@@ -82,6 +196,43 @@ public class PlannerAgent extends Agent {
 
     }
 
+    /**
+     * Plans from the start state with the search picked by the optional arguments.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan or null if no plan is found.
+     */
+    Stack<StripsAction> search(GameState startState) {
+        applyOptions(startState.getLayout());
+        metrics = new SearchMetrics(searchType.equals("astar") && threads > 1 ? "hda" : searchType);
+        metrics.start(startState);
+        try {
+            if (searchType.equals("ara")) {
+                return new AnytimeSearch(Long.parseLong(getOption("budget", "1000")),
+                        Double.parseDouble(getOption("weight", "3.0")),
+                        Double.parseDouble(getOption("weightStep", "0.5")), metrics).search(startState);
+            }
+            if (searchType.equals("ida")) {
+                return new IterativeDeepeningSearch(Integer.parseInt(getOption("nodes", "1048576")), metrics)
+                        .search(startState);
+            }
+            if (searchType.equals("sma")) {
+                return new MemoryBoundedSearch(Integer.parseInt(getOption("nodes", "1048576")), metrics)
+                        .search(startState);
+            }
+            if (searchType.equals("pea")) {
+                return new PartialExpansionSearch(Double.parseDouble(getOption("cutoff", "0")), metrics)
+                        .search(startState);
+            }
+            if (threads > 1) {
+                return new HashDistributedSearch(threads, this::makeOpenList, metrics).search(startState);
+            }
+            return AstarSearch(startState);
+        } finally {
+            metrics.finish(startState);
+        }
+    }
+
     /**
      * Perform an A* search of the game graph. This should return your plan as a stack of actions. This is essentially
      * the same as your first assignment. The implementations should be very similar. The difference being that your
@@ -92,37 +243,83 @@ public class PlannerAgent extends Agent {
      */
     private Stack<StripsAction> AstarSearch(GameState startState) {
     	
-    	// Creates a map for the visited parts of the map
-    	List<GameState> visited = new ArrayList<GameState>();
+    	// The closed list keeps the best cost each state has been reached with, keyed by its hash
+    	ClosedTable closed = new ClosedTable(1 << 16);
     	
     	// Keep the open list as a priority queue ordered by the sum of the path length and heuristic value.
-    	PriorityQueue<GameState> openList = new PriorityQueue<GameState>(100);
+    	OpenList openList = makeOpenList();
     	
     	// Add initial state to open list
+    	closed.offer(startState.getZobristHash(), startState.getCost());
     	openList.offer(startState);
     	
     	// Perform search loop
-    	int count = 0;
     	GameState nextState = null;
     	while (!openList.isEmpty()) {
     		nextState = openList.poll();
+    		
+    		// Skip stale entries, the state has since been reached more cheaply
+    		if (nextState.getCost() > closed.getCost(nextState.getZobristHash())) {
+    			continue;
+    		}
+    		
     		// If node is the goal, return the path/plan to it
     		if (nextState.isGoal()) {
     			Stack<StripsAction> plan = nextState.getPlan();
     			System.out.println("plan found");
     			return plan;
     		}
-    		else {	// Add its kids to the open and count it as visited
-    			openList.addAll(nextState.generateChildren());
-    			visited.add(nextState);
-    			count++;
+    		else {	// Add the kids that improve on every earlier visit to their state
+    			List<GameState> children = nextState.generateChildren();
+    			metrics.recordExpansion();
+    			metrics.recordGenerated(children.size());
+    			for (GameState child : children) {
+    				boolean seen = closed.getCost(child.getZobristHash()) != Double.POSITIVE_INFINITY;
+    				if (closed.offer(child.getZobristHash(), child.getCost())) {
+    					openList.offer(child);
+    					if (seen) {
+    						metrics.recordReopening();
+    					}
+    				} else {
+    					metrics.recordDuplicate();
+    				}
+    			}
+    			metrics.recordOpenListSize(openList.size());
     		}
     	}
     	
-    	// No path is possible, quit.
+    	// No path is possible
     	System.out.println("No available plan");
-    	System.exit(0);
-    	return new Stack<StripsAction>();
+    	return null;
+    }
+
+    // The most states a plan repair may expand, from the repairExpansions argument
+    private int repairExpansions() {
+        return Integer.parseInt(getOption("repairExpansions", "20000"));
+    }
+
+    // Returns the actions of a plan in the order they are taken
+    private static List<StripsAction> toList(Stack<StripsAction> plan) {
+        List<StripsAction> actions = new ArrayList<StripsAction>(plan);
+        Collections.reverse(actions);
+        return actions;
+    }
+
+    /**
+     * @return The metrics of the last search, or null if there has not been one
+     */
+    SearchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return An empty open list of the type picked by the openList argument
+     */
+    private OpenList makeOpenList() {
+        if (openListType.equals("bucket")) {
+            return new BucketOpenList(256);
+        }
+        return new HeapOpenList(100);
     }
 
     /**
@@ -135,16 +332,24 @@ public class PlannerAgent extends Agent {
      * @param plan Stack of Strips Actions that are written to the text file.
      */
     private void savePlan(Stack<StripsAction> plan) {
+        File outputDir = new File("saves");
+        outputDir.mkdirs();
+
+        writePlan(plan, new File(outputDir, "plan.txt"));
+    }
+
+    /**
+     * Writes a plan to a text file, one action per line in the order they are taken.
+     *
+     * @param plan Stack of Strips Actions that are written to the text file.
+     * @param outputFile The file to write
+     */
+    static void writePlan(Stack<StripsAction> plan, File outputFile) {
         if (plan == null) {
             System.err.println("Cannot save null plan");
             return;
         }
 
-        File outputDir = new File("saves");
-        outputDir.mkdirs();
-
-        File outputFile = new File(outputDir, "plan.txt");
-
         PrintWriter outputWriter = null;
         try {
             outputFile.createNewFile();
@@ -164,4 +369,83 @@ public class PlannerAgent extends Agent {
                 outputWriter.close();
         }
     }
+
+    /**
+     * Writes the plan to saves/plan.bin in the binary plan format and maps it back in. The plan is replayed in the
+     * joint steps the search took, so the cost in the header is the cost of the goal state, also for a cached plan.
+     *
+     * @param plan The plan to write
+     * @param startState The state the plan starts from
+     * @return A reader over the written plan, or null if it could not be written
+     */
+    private PlanReader saveBinaryPlan(Stack<StripsAction> plan, GameState startState) {
+        File outputDir = new File("saves");
+        outputDir.mkdirs();
+
+        File outputFile = new File(outputDir, "plan.bin");
+        try {
+            double cost = new PlanRepair(startState, toList(plan), 0).getCost();
+            PlanWriter.write(plan, outputFile, startState, cost);
+            return PlanReader.open(outputFile);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a binary plan file to execute.
+     *
+     * @param planFile The file to read
+     * @param startState The state the plan has to start from
+     * @return The plan, or null if it can not be read or was made for a different start state
+     */
+    private PlanReader readPlan(File planFile, GameState startState) {
+        try {
+            PlanReader plan = PlanReader.open(planFile);
+            if (plan.getFingerprint().equals(startState.getFingerprint())) {
+                System.out.println("executing the plan in " + planFile + ", cost " + plan.getCost());
+                return plan;
+            }
+            System.err.println(planFile + " was made for a different map or goal, planning instead");
+        } catch (IOException e) {
+            System.err.println("Unable to read " + planFile + ", planning instead: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Writes the counters of the search to saves/metrics.json, next to the plan.
+     *
+     * @param metrics The metrics of the search that found the plan
+     */
+    private void saveMetrics(SearchMetrics metrics) {
+        File outputDir = new File("saves");
+        outputDir.mkdirs();
+
+        writeMetrics(metrics, new File(outputDir, "metrics.json"));
+    }
+
+    /**
+     * Writes the counters of a search to a JSON file.
+     *
+     * @param metrics The metrics of the search
+     * @param outputFile The file to write
+     */
+    static void writeMetrics(SearchMetrics metrics, File outputFile) {
+        if (metrics == null) {
+            return;
+        }
+
+        PrintWriter outputWriter = null;
+        try {
+            outputWriter = new PrintWriter(outputFile.getAbsolutePath());
+            outputWriter.print(metrics.toJson());
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } finally {
+            if (outputWriter != null)
+                outputWriter.close();
+        }
+    }
 }
@@ -0,0 +1,307 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A per map index of where the resources are. Answers "which resource is on this cell" and "which resource is next
+ * to this cell" with array lookups, and keeps, for every cell a peasant can stop on, the gold mines and trees sorted
+ * by how far a peasant has to walk to them.
+ *
+ * The nearest resource that is not used up is the first entry of the sorted list with anything left, so a lookup
+ * only looks past the resources that have been emptied, however many resources the map has.
+ *
+ * The same is done for harvest trips, which the heuristic is built on. A trip from a cell walks to a free cell next
+ * to a resource, harvests, walks to a free cell next to the town hall and deposits. The walking part is precomputed
+ * for every stop cell and resource, along with the cheapest round trip from the town hall to each resource.
+ */
+public class ResourceGrid {
+
+	private static final int[] DX = { -1, 0, 1, -1, 1, -1, 0, 1 };
+	private static final int[] DY = { -1, -1, -1, 0, 0, 1, 1, 1 };
+
+	// A trip is described by the walk to the resource, the cell the peasant deposits from and the walk back to it
+	private static final int TRIP_SIZE = 3;
+
+	private final int xExtent;
+	private final int yExtent;
+	private final int[] resourceAtCell;			// The resource index on each cell, -1 for none
+	private final GameState.Resource[] types;	// The type of each resource
+	private final DistanceOracle distances;
+	private final int[][] goldByDistance;		// Gold mines nearest first, per stop cell, null for other cells
+	private final int[][] woodByDistance;		// Trees nearest first, per stop cell, null for other cells
+	private final int[][] goldByTrip;			// Gold mines cheapest trip first, per stop cell
+	private final int[][] woodByTrip;			// Trees cheapest trip first, per stop cell
+	private final int[] roundTrips;				// The cheapest round trip walk from the town hall to each resource
+	private final int[] goldByRoundTrip;		// Gold mines, cheapest round trip first
+	private final int[] woodByRoundTrip;		// Trees, cheapest round trip first
+
+	/**
+	 * @param xExtent The horizontal extent of the map
+	 * @param yExtent The vertical extent of the map
+	 * @param resourceCells The cell of each resource
+	 * @param types The type of each resource
+	 * @param distances The travel distances for the map
+	 * @param stopCells The cells peasants can stop on, to sort the resources for
+	 */
+	public ResourceGrid(int xExtent, int yExtent, int[] resourceCells, GameState.Resource[] types,
+			DistanceOracle distances, int[] stopCells) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.types = types;
+		this.distances = distances;
+
+		this.resourceAtCell = new int[xExtent * yExtent];
+		Arrays.fill(resourceAtCell, -1);
+		for (int r = 0; r < resourceCells.length; r++) {
+			resourceAtCell[resourceCells[r]] = r;
+		}
+
+		this.goldByDistance = new int[xExtent * yExtent][];
+		this.woodByDistance = new int[xExtent * yExtent][];
+		this.goldByTrip = new int[xExtent * yExtent][];
+		this.woodByTrip = new int[xExtent * yExtent][];
+		for (int cell : stopCells) {
+			goldByDistance[cell] = sortByDistance(cell, GameState.Resource.GOLD);
+			woodByDistance[cell] = sortByDistance(cell, GameState.Resource.WOOD);
+			goldByTrip[cell] = sortByTrip(cell, GameState.Resource.GOLD);
+			woodByTrip[cell] = sortByTrip(cell, GameState.Resource.WOOD);
+		}
+
+		// Going out from the town hall and back costs at least twice the shortest walk between the two
+		this.roundTrips = new int[types.length];
+		int townHall = types.length;
+		for (int r = 0; r < types.length; r++) {
+			int oneWay = DistanceOracle.UNREACHABLE;
+			for (int cell : distances.getStandCells(r)) {
+				oneWay = Math.min(oneWay, distances.distanceToTarget(cell, townHall));
+			}
+			roundTrips[r] = oneWay == DistanceOracle.UNREACHABLE ? DistanceOracle.UNREACHABLE : 2 * oneWay;
+		}
+		this.goldByRoundTrip = sortByRoundTrip(GameState.Resource.GOLD);
+		this.woodByRoundTrip = sortByRoundTrip(GameState.Resource.WOOD);
+	}
+
+	/**
+	 * @return The index of the resource on a cell, or -1 if there is none
+	 */
+	public int resourceAt(int cell) {
+		return resourceAtCell[cell];
+	}
+
+	/**
+	 * Finds a resource of the given type next to a cell that still has something left.
+	 *
+	 * @param cell The cell to look around
+	 * @param type The type of resource to look for
+	 * @param amounts The remaining amount of every resource, offset by amountOffset
+	 * @param amountOffset Where the resource amounts start in the amounts array
+	 * @return The index of the resource, or -1 if there is none
+	 */
+	public int adjacentResource(int cell, GameState.Resource type, int[] amounts, int amountOffset) {
+		int x = cell % xExtent;
+		int y = cell / xExtent;
+		for (int d = 0; d < DX.length; d++) {
+			int nx = x + DX[d];
+			int ny = y + DY[d];
+			if (nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+				continue;
+			}
+			int r = resourceAtCell[ny * xExtent + nx];
+			if (r >= 0 && types[r] == type && amounts[amountOffset + r] > 0) {
+				return r;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the resource of the given type that is the shortest walk from a cell and still has something left.
+	 *
+	 * @param cell The cell to walk from
+	 * @param type The type of resource to look for
+	 * @param amounts The remaining amount of every resource, offset by amountOffset
+	 * @param amountOffset Where the resource amounts start in the amounts array
+	 * @return The index of the resource, or -1 if none can be reached
+	 */
+	public int nearestResource(int cell, GameState.Resource type, int[] amounts, int amountOffset) {
+		int[] sorted = type == GameState.Resource.GOLD ? goldByDistance[cell] : woodByDistance[cell];
+		if (sorted == null) {
+			// Peasants only stop on the cells sorted for, this is just a fallback
+			sorted = sortByDistance(cell, type);
+		}
+		for (int r : sorted) {
+			if (amounts[amountOffset + r] > 0) {
+				return r;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The walking part of the cheapest trip from a cell to a resource of the given type that still has something left
+	 * and on to the town hall.
+	 *
+	 * @param cell The cell the trip starts from
+	 * @param type The type of resource to harvest
+	 * @param amounts The remaining amount of every resource, offset by amountOffset
+	 * @param amountOffset Where the resource amounts start in the amounts array
+	 * @return The number of steps, or DistanceOracle.UNREACHABLE if no such trip is possible
+	 */
+	public int cheapestTripWalk(int cell, GameState.Resource type, int[] amounts, int amountOffset) {
+		int[] sorted = type == GameState.Resource.GOLD ? goldByTrip[cell] : woodByTrip[cell];
+		if (sorted == null) {
+			sorted = sortByTrip(cell, type);
+		}
+		for (int r : sorted) {
+			if (amounts[amountOffset + r] > 0) {
+				return tripWalk(cell, r);
+			}
+		}
+		return DistanceOracle.UNREACHABLE;
+	}
+
+	/**
+	 * Checks whether two resources are reached the same way from a cell: the walk there, where the peasant then
+	 * deposits from and the walk back are the same, and so are the same three for the next trip, which starts where
+	 * the peasant deposited. Harvest trips to two such resources cost the same and leave the peasant in the same
+	 * place, and so does the trip after.
+	 *
+	 * @param cell The cell a peasant is on
+	 * @param a The index of one resource
+	 * @param b The index of the other resource
+	 * @return True if a trip to either resource is the same
+	 */
+	public boolean sameTrips(int cell, int a, int b) {
+		int[] trips = new int[2 * TRIP_SIZE];
+		for (int leg = 0; leg < 2; leg++) {
+			trip(cell, a, trips, 0);
+			trip(cell, b, trips, TRIP_SIZE);
+			for (int i = 0; i < TRIP_SIZE; i++) {
+				if (trips[i] != trips[TRIP_SIZE + i]) {
+					return false;
+				}
+			}
+			if (trips[1] < 0) {
+				return true;
+			}
+			cell = trips[1];
+		}
+		return true;
+	}
+
+	// Writes the trip a peasant on a cell takes to a resource, all -1 if there is none
+	private void trip(int cell, int resource, int[] trips, int offset) {
+		int townHall = types.length;
+		int stand = distances.nearestStandCell(cell, resource);
+		int deposit = stand < 0 ? -1 : distances.nearestStandCell(stand, townHall);
+		if (deposit < 0) {
+			Arrays.fill(trips, offset, offset + TRIP_SIZE, -1);
+			return;
+		}
+		trips[offset] = distances.distance(cell, stand);
+		trips[offset + 1] = deposit;
+		trips[offset + 2] = distances.distance(stand, deposit);
+	}
+
+	/**
+	 * The walking part of the cheapest set of round trips from the town hall to resources of the given type. Every
+	 * trip after a peasant's first one starts and ends next to the town hall. Trips go to the resources with the
+	 * cheapest round trip first, and a resource holding an amount can take at most ceil(amount / 100) trips.
+	 *
+	 * @param type The type of resource to harvest
+	 * @param trips The number of round trips to make
+	 * @param amounts The remaining amount of every resource, offset by amountOffset
+	 * @param amountOffset Where the resource amounts start in the amounts array
+	 * @return The number of steps, or Long.MAX_VALUE if the resources left can not take that many trips
+	 */
+	public long cheapestRoundTripsWalk(GameState.Resource type, int trips, int[] amounts, int amountOffset) {
+		long walk = 0;
+		for (int r : type == GameState.Resource.GOLD ? goldByRoundTrip : woodByRoundTrip) {
+			if (trips <= 0) {
+				break;
+			}
+			int capacity = (amounts[amountOffset + r] + 99) / 100;
+			int taken = Math.min(trips, capacity);
+			walk += (long)taken * roundTrips[r];
+			trips -= taken;
+		}
+		return trips > 0 ? Long.MAX_VALUE : walk;
+	}
+
+	// Returns the fewest steps to walk from a cell to next to a resource and then to next to the town hall
+	private int tripWalk(int cell, int resource) {
+		int townHall = types.length;
+		int best = DistanceOracle.UNREACHABLE;
+		for (int stand : distances.getStandCells(resource)) {
+			int there = distances.distance(cell, stand);
+			int back = distances.distanceToTarget(stand, townHall);
+			if (there < DistanceOracle.UNREACHABLE && back < DistanceOracle.UNREACHABLE) {
+				best = Math.min(best, there + back);
+			}
+		}
+		return best;
+	}
+
+	// Returns the resources of a type that a trip from a cell can use, cheapest trip first
+	private int[] sortByTrip(final int cell, GameState.Resource type) {
+		List<Integer> resources = new ArrayList<Integer>();
+		for (int r = 0; r < types.length; r++) {
+			if (types[r] == type && tripWalk(cell, r) < DistanceOracle.UNREACHABLE) {
+				resources.add(r);
+			}
+		}
+		Collections.sort(resources, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(tripWalk(cell, a), tripWalk(cell, b));
+			}
+		});
+		return toArray(resources);
+	}
+
+	// Returns the resources of a type that can be reached from the town hall, cheapest round trip first
+	private int[] sortByRoundTrip(GameState.Resource type) {
+		List<Integer> resources = new ArrayList<Integer>();
+		for (int r = 0; r < types.length; r++) {
+			if (types[r] == type && roundTrips[r] < DistanceOracle.UNREACHABLE) {
+				resources.add(r);
+			}
+		}
+		Collections.sort(resources, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(roundTrips[a], roundTrips[b]);
+			}
+		});
+		return toArray(resources);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	// Returns the reachable resources of a type, nearest first
+	private int[] sortByDistance(final int cell, GameState.Resource type) {
+		List<Integer> resources = new ArrayList<Integer>();
+		for (int r = 0; r < types.length; r++) {
+			if (types[r] == type && distances.distanceToTarget(cell, r) < DistanceOracle.UNREACHABLE) {
+				resources.add(r);
+			}
+		}
+		Collections.sort(resources, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(distances.distanceToTarget(cell, a), distances.distanceToTarget(cell, b));
+			}
+		});
+		return toArray(resources);
+	}
+}
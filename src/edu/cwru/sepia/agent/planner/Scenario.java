@@ -0,0 +1,128 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.util.config.xml.XmlAgentParameters;
+import edu.cwru.sepia.util.config.xml.XmlConfiguration;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A planning problem read from one of the SEPIA configuration files in data/: the map it is played on and the
+ * arguments given to the PlannerAgent. Lets the planner be run and measured without starting a SEPIA episode.
+ *
+ * A scenario can also be made from a bare map, or from a state SEPIA saved to saves/*.SRTSsav, which use the same
+ * format, with the arguments given directly.
+ */
+public class Scenario {
+
+	private final String name;			// The configuration file name without its extension
+	private final State.StateView state;	// The initial state of the map
+	private final int playernum;		// The player the PlannerAgent plays as
+	private final String[] arguments;	// The PlannerAgent arguments: wood, gold, build peasants and options
+
+	private Scenario(String name, State.StateView state, int playernum, String[] arguments) {
+		this.name = name;
+		this.state = state;
+		this.playernum = playernum;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * Reads a configuration file and the map it names. Map paths are resolved the way SEPIA resolves them, against
+	 * the working directory.
+	 *
+	 * @param configPath The path of the configuration file
+	 * @return The scenario
+	 * @throws IOException If either file can not be read or the configuration has no PlannerAgent
+	 */
+	public static Scenario load(String configPath) throws IOException {
+		try {
+			XmlConfiguration config = (XmlConfiguration)JAXBContext.newInstance(XmlConfiguration.class)
+					.createUnmarshaller().unmarshal(new File(configPath));
+			XmlState map = readState(config.getMap());
+
+			for (XmlAgentParameters player : config.getPlayer()) {
+				if (player.getAgentClass().getClassName().equals(PlannerAgent.class.getName())) {
+					List<String> arguments = player.getAgentClass().getArgument();
+					int playernum = player.getId() == null ? 0 : player.getId();
+					String name = new File(configPath).getName().replaceFirst("\\.xml$", "");
+					return new Scenario(name, new XmlStateCreator(map).createState().getView(playernum), playernum,
+							arguments.toArray(new String[arguments.size()]));
+				}
+			}
+			throw new IOException(configPath + " does not configure a " + PlannerAgent.class.getSimpleName());
+		} catch (JAXBException e) {
+			throw new IOException("Unable to read " + configPath, e);
+		}
+	}
+
+	/**
+	 * Reads a map or a saved state and pairs it with PlannerAgent arguments.
+	 *
+	 * @param mapPath The path of the map or saved state
+	 * @param playernum The player to plan for
+	 * @param arguments The PlannerAgent arguments: wood, gold, build peasants and options
+	 * @return The scenario
+	 * @throws IOException If the file can not be read
+	 */
+	public static Scenario fromMap(String mapPath, int playernum, String... arguments) throws IOException {
+		if (arguments.length < 3) {
+			throw new IllegalArgumentException("The wood and gold amounts and whether peasants are built are required");
+		}
+		try {
+			String name = new File(mapPath).getName().replaceFirst("\\.[^.]*$", "");
+			return new Scenario(name, new XmlStateCreator(readState(mapPath)).createState().getView(playernum),
+					playernum, arguments.clone());
+		} catch (JAXBException e) {
+			throw new IOException("Unable to read " + mapPath, e);
+		}
+	}
+
+	private static XmlState readState(String path) throws JAXBException {
+		return (XmlState)JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(new File(path));
+	}
+
+	/**
+	 * @return The start state of a search for this scenario
+	 */
+	public GameState createInitialState() {
+		return new GameState(state, playernum, getRequiredGold(), getRequiredWood(), isBuildPeasants());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public State.StateView getStateView() {
+		return state;
+	}
+
+	public int getPlayernum() {
+		return playernum;
+	}
+
+	/**
+	 * @return A copy of the arguments the configuration passes to the PlannerAgent
+	 */
+	public String[] getArguments() {
+		return arguments.clone();
+	}
+
+	public int getRequiredWood() {
+		return Integer.parseInt(arguments[0]);
+	}
+
+	public int getRequiredGold() {
+		return Integer.parseInt(arguments[1]);
+	}
+
+	public boolean isBuildPeasants() {
+		return Boolean.parseBoolean(arguments[2]);
+	}
+}
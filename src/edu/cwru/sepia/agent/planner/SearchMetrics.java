@@ -0,0 +1,232 @@
+package edu.cwru.sepia.agent.planner;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one search, filled in by the search engine as it runs. Counters may be updated from any
+ * number of threads, so the parallel engines can share one instance.
+ *
+ * Between start and finish the metrics are registered as an MBean, under
+ * edu.cwru.sepia.agent.planner:type=SearchMetrics,id=N, so a running planner can be watched with jconsole or any
+ * other JMX client. Heuristic time is collected through the MapLayout of the start state, which every state of the
+ * search shares, and allocation is read for the planning thread from the JVM's ThreadMXBean.
+ */
+public class SearchMetrics implements SearchMetricsMBean {
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private final String search;			// The name of the search engine
+	private final ObjectName objectName;	// The MBean name, unique to this search
+
+	private final LongAdder expanded = new LongAdder();
+	private final LongAdder generated = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder reopenings = new LongAdder();
+	private final LongAdder heuristicNanos = new LongAdder();
+	private final LongAccumulator peakOpen = new LongAccumulator(Math::max, 0);
+
+	private volatile Thread planningThread;	// The thread that started the search
+	private volatile boolean running;
+	private volatile long startNanos;
+	private volatile long endNanos;
+	private long startAllocated;				// The planning thread's allocation count at the start
+	private volatile long allocated = -1;		// The bytes allocated during the search, once finished
+	private volatile double bound = Double.NaN;	// The suboptimality bound of the plan, if the search measures one
+
+	/**
+	 * @param search The name of the search engine being measured
+	 */
+	public SearchMetrics(String search) {
+		this.search = search;
+		try {
+			this.objectName = new ObjectName("edu.cwru.sepia.agent.planner:type=SearchMetrics,id=" +
+					nextId.getAndIncrement());
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Starts the clocks and publishes the metrics over JMX. Call from the thread that runs the search.
+	 *
+	 * @param startState The state the search starts from
+	 */
+	public void start(GameState startState) {
+		// The first use of the platform MBean server starts it, which is kept out of the measurements
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			System.err.println("Unable to publish search metrics: " + e.getMessage());
+		}
+
+		planningThread = Thread.currentThread();
+		startAllocated = threadAllocatedBytes(planningThread);
+		startState.getLayout().setHeuristicTimer(heuristicNanos);
+		startNanos = System.nanoTime();
+		running = true;
+	}
+
+	/**
+	 * Stops the clocks and withdraws the metrics from JMX. Call from the thread that ran the search.
+	 *
+	 * @param startState The state the search started from
+	 */
+	public void finish(GameState startState) {
+		endNanos = System.nanoTime();
+		long now = threadAllocatedBytes(planningThread);
+		allocated = now < 0 || startAllocated < 0 ? -1 : now - startAllocated;
+		startState.getLayout().setHeuristicTimer(null);
+		running = false;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			System.err.println("Unable to withdraw search metrics: " + e.getMessage());
+		}
+	}
+
+	public void recordExpansion() {
+		expanded.increment();
+	}
+
+	public void recordGenerated(int children) {
+		generated.add(children);
+	}
+
+	public void recordDuplicate() {
+		duplicates.increment();
+	}
+
+	public void recordReopening() {
+		reopenings.increment();
+	}
+
+	public void recordOpenListSize(long size) {
+		peakOpen.accumulate(size);
+	}
+
+	public void recordSuboptimalityBound(double bound) {
+		this.bound = bound;
+	}
+
+	@Override
+	public String getSearch() {
+		return search;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public long getNodesExpanded() {
+		return expanded.sum();
+	}
+
+	@Override
+	public long getNodesGenerated() {
+		return generated.sum();
+	}
+
+	@Override
+	public long getDuplicatesPruned() {
+		return duplicates.sum();
+	}
+
+	@Override
+	public long getReopenings() {
+		return reopenings.sum();
+	}
+
+	@Override
+	public long getPeakOpenListSize() {
+		return peakOpen.get();
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return elapsedNanos() / 1000000L;
+	}
+
+	@Override
+	public double getNanosPerExpansion() {
+		long count = expanded.sum();
+		return count == 0 ? 0.0 : (double)elapsedNanos() / count;
+	}
+
+	@Override
+	public double getHeuristicTimeShare() {
+		long elapsed = elapsedNanos();
+		return elapsed == 0 ? 0.0 : (double)heuristicNanos.sum() / elapsed;
+	}
+
+	@Override
+	public long getAllocatedBytes() {
+		if (running) {
+			long now = threadAllocatedBytes(planningThread);
+			return now < 0 || startAllocated < 0 ? -1 : now - startAllocated;
+		}
+		return allocated;
+	}
+
+	@Override
+	public double getSuboptimalityBound() {
+		return bound;
+	}
+
+	/**
+	 * @return The metrics as a JSON object
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT,
+				"{%n" +
+				"  \"search\": \"%s\",%n" +
+				"  \"nodesExpanded\": %d,%n" +
+				"  \"nodesGenerated\": %d,%n" +
+				"  \"duplicatesPruned\": %d,%n" +
+				"  \"reopenings\": %d,%n" +
+				"  \"peakOpenListSize\": %d,%n" +
+				"  \"elapsedMillis\": %d,%n" +
+				"  \"nanosPerExpansion\": %.1f,%n" +
+				"  \"heuristicTimeShare\": %.4f,%n" +
+				"  \"allocatedBytes\": %d,%n" +
+				"  \"suboptimalityBound\": %s%n" +
+				"}%n",
+				search.replace("\\", "\\\\").replace("\"", "\\\""), getNodesExpanded(), getNodesGenerated(),
+				getDuplicatesPruned(), getReopenings(), getPeakOpenListSize(), getElapsedMillis(),
+				getNanosPerExpansion(), getHeuristicTimeShare(), getAllocatedBytes(),
+				Double.isNaN(bound) ? "null" : String.format(Locale.ROOT, "%.4f", bound));
+	}
+
+	private long elapsedNanos() {
+		if (startNanos == 0) {
+			return 0;
+		}
+		return (running ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	// Returns the bytes a thread has allocated so far, or -1 if the JVM can not tell
+	private static long threadAllocatedBytes(Thread thread) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (thread == null || !(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+		if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		return hotspot.getThreadAllocatedBytes(thread.getId());
+	}
+}
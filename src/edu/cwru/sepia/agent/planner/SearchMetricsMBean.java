@@ -0,0 +1,57 @@
+package edu.cwru.sepia.agent.planner;
+
+/**
+ * The JMX view of the SearchMetrics of a running search. Every value can be read while the search is running.
+ */
+public interface SearchMetricsMBean {
+
+	/**
+	 * @return The name of the search engine, as passed in the search argument
+	 */
+	public String getSearch();
+
+	/**
+	 * @return True until the search has finished
+	 */
+	public boolean isRunning();
+
+	public long getNodesExpanded();
+
+	public long getNodesGenerated();
+
+	/**
+	 * @return The number of generated states dropped because they had been reached at no higher cost
+	 */
+	public long getDuplicatesPruned();
+
+	/**
+	 * @return The number of states that were added again after being reached more cheaply
+	 */
+	public long getReopenings();
+
+	/**
+	 * @return The most states the open list (or lists) held at once
+	 */
+	public long getPeakOpenListSize();
+
+	public long getElapsedMillis();
+
+	public double getNanosPerExpansion();
+
+	/**
+	 * @return The time spent evaluating the heuristic over the time searched. Children built in parallel can make it
+	 * more than 1.
+	 */
+	public double getHeuristicTimeShare();
+
+	/**
+	 * @return The bytes allocated by the planning thread since the search started, or -1 if the JVM does not measure it
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * @return How many times the optimal cost the plan found so far may cost at most, or NaN if the search does not
+	 * measure it. Only search=ara measures it.
+	 */
+	public double getSuboptimalityBound();
+}
@@ -1,71 +1,278 @@
 package edu.cwru.sepia.agent.planner.actions;
 
+import edu.cwru.sepia.agent.planner.ActionTable;
 import edu.cwru.sepia.agent.planner.GameState;
+import edu.cwru.sepia.agent.planner.MapLayout;
 import edu.cwru.sepia.agent.planner.Position;
 import edu.cwru.sepia.util.Direction;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes the actions of the planner. Actions are immutable: whatever an action resolves from the state it is made
+ * in, such as the cell a move ends on or the direction of a harvest, is worked out here and fixed, and checking its
+ * preconditions only reads the state. That lets one instance stand for the action wherever it is taken, so actions
+ * made from a state are interned in the MapLayout's action table under a key packing their kind, unit and fields,
+ * and the search finds the same object every time instead of allocating a new one for every node. The table takes
+ * the key as a primitive long, so an action that is found allocates nothing at all.
+ */
 public class ActionFactory {
-	
+
+	// The kinds of action, the top byte of a key in the action table
+	private static final int MOVE = 1;
+	private static final int DEPOSIT = 2;
+	private static final int HARVEST = 3;
+	private static final int GATHER_CYCLE = 4;
+	private static final int BUILD_PEASANT = 5;
+
+	private static final int FIELD_BITS = 20;	// The width of each of the two fields in a key
+
+	private ActionFactory() {
+	}
+
+	/**
+	 * Creates a move toward a position. A move to a resource or the town hall ends on the free cell next to it that
+	 * is the shortest walk away from where the peasant is in the state.
+	 * @param state The state the move is made in
+	 * @param pos The cell or target the move is toward
+	 * @return A MoveAction object to the resolved cell, or null if there is none to move to
+	 */
+	public static StripsAction makeMoveAction(GameState state, int unitID, Position pos) {
+		if (!pos.inBounds(state.getXExtent(), state.getYExtent())) {
+			return null;
+		}
+		MapLayout layout = state.getLayout();
+		Position destination = pos;
+		int target = layout.targetAt(pos);
+		if (target >= 0) {
+			// Since moves are between distinct positions, moves to a destination
+			// that the peasant is already adjacent to are not allowed.
+			Position peasant = state.getPeasantPosition(unitID);
+			if (pos.isAdjacent(peasant)) {
+				return null;
+			}
+			destination = layout.nearestAdjacentPosition(peasant, target);
+			if (destination == null) {
+				return null;
+			}
+		}
+		long key = key(MOVE, unitID, layout.cellOf(destination), 0);
+		StripsAction known = lookup(layout, key);
+		return known != null ? known : intern(layout, key, new MoveAction(destination, unitID));
+	}
+
 	/**
-	 * Creates a move action with the given direction
-	 * @param dir The direction the move is in
-	 * @return A MoveAction object in the given direction
+	 * Creates a move to a cell that is already resolved, for actions read back from a saved plan
+	 * @return A MoveAction object to the given cell
 	 */
 	public static StripsAction makeMoveAction(int unitID, Position pos) {
-		ActionFactory factory = new ActionFactory();
-		return factory.new MoveAction(pos, unitID);
+		return new MoveAction(pos, unitID);
 	}
-	
+
 	/**
-	 * Creates a deposit action of any resource type
-	 * @return A DepositAction object for any resource type
+	 * Creates a deposit toward the town hall from where the peasant is in the state
+	 * @return A DepositAction object, or null if the peasant is not next to the town hall
 	 */
-	public static StripsAction makeDepositAction(int unitID) {
-		ActionFactory factory = new ActionFactory();
-		return factory.new DepositAction(unitID);
+	public static StripsAction makeDepositAction(GameState state, int unitID) {
+		Position peasant = state.getPeasantPosition(unitID);
+		Position townHall = state.getTownHallPosition();
+		if (!peasant.isAdjacent(townHall)) {
+			return null;
+		}
+		Direction direction = peasant.getDirection(townHall);
+		MapLayout layout = state.getLayout();
+		long key = key(DEPOSIT, unitID, direction.ordinal(), 0);
+		StripsAction known = lookup(layout, key);
+		return known != null ? known : intern(layout, key, new DepositAction(unitID, direction));
 	}
-	
+
 	/**
-	 * Creates a harvest action of a given resource type
-	 * @param type The type of resource 
-	 * @return A HarvestAction object for the given resource type
+	 * Creates a deposit action toward the town hall in a known direction, for actions read back from a saved plan
+	 * @return A DepositAction object in the given direction
 	 */
-	public static StripsAction makeHarvestAction(int unitID, GameState.Resource type) {
-		ActionFactory factory = new ActionFactory();
-		return factory.new HarvestAction(unitID, type);
+	public static StripsAction makeDepositAction(int unitID, Direction direction) {
+		return new DepositAction(unitID, direction);
 	}
-	
-	public static StripsAction makeBuildAction() {
-		ActionFactory factory = new ActionFactory();
-		return factory.new BuildPeasantAction();
+
+	/**
+	 * Creates a harvest from a resource of the given type next to where the peasant is in the state
+	 * @param type The type of resource
+	 * @return A HarvestAction object for the resource found, or null if there is none
+	 */
+	public static StripsAction makeHarvestAction(GameState state, int unitID, GameState.Resource type) {
+		Position peasant = state.getPeasantPosition(unitID);
+		int resource = state.resourceNextToPosition(peasant, type);
+		if (resource < 0) {
+			return null;
+		}
+		MapLayout layout = state.getLayout();
+		Direction direction = peasant.getDirection(layout.getResourcePosition(resource));
+		long key = key(HARVEST, unitID, resource, direction.ordinal());
+		StripsAction known = lookup(layout, key);
+		return known != null ? known : intern(layout, key, new HarvestAction(unitID, type, resource, direction));
 	}
-	
+
 	/**
-	 * A strips action describing a directional move of the peasant
+	 * Creates a harvest from a known resource next to where the peasant is in the state, for actions read back from a
+	 * saved plan that keeps the resource but not the direction
+	 * @param resource The index of the resource to harvest from
+	 * @return A HarvestAction object for the resource, or null if the peasant is not next to it
 	 */
-	public class MoveAction implements StripsAction {
-		
-		private Position position;	// The direction of the move
-		private int unitID;
-		
-		// Pass the direction the move will be in
-		public MoveAction(Position pos, int unitid) {
+	public static StripsAction makeHarvestAction(GameState state, int unitID, int resource) {
+		MapLayout layout = state.getLayout();
+		if (resource < 0 || resource >= layout.getResourceCount()) {
+			return null;
+		}
+		Position peasant = state.getPeasantPosition(unitID);
+		Position target = layout.getResourcePosition(resource);
+		if (!peasant.isAdjacent(target)) {
+			return null;
+		}
+		Direction direction = peasant.getDirection(target);
+		long key = key(HARVEST, unitID, resource, direction.ordinal());
+		StripsAction known = lookup(layout, key);
+		return known != null ? known :
+				intern(layout, key, new HarvestAction(unitID, layout.getResourceType(resource), resource, direction));
+	}
+
+	/**
+	 * Creates a harvest action from a known resource in a known direction, for actions read back from a saved plan
+	 * @param resource The index of the resource harvested from
+	 * @return A HarvestAction object for the given resource
+	 */
+	public static StripsAction makeHarvestAction(int unitID, GameState.Resource type, int resource,
+			Direction direction) {
+		return new HarvestAction(unitID, type, resource, direction);
+	}
+
+	/**
+	 * Creates a full harvest trip from where the peasant is in the state: move to the resource, harvest it, move
+	 * back to the town hall and deposit
+	 * @param resource The index of the resource to harvest
+	 * @return A GatherCycleAction object for the given peasant and resource, or null if the trip can not be walked
+	 */
+	public static StripsAction makeGatherCycleAction(GameState state, int unitID, int resource) {
+		MapLayout layout = state.getLayout();
+		Position start = state.getPeasantPosition(unitID);
+		long key = key(GATHER_CYCLE, unitID, resource, layout.cellOf(start));
+		StripsAction known = lookup(layout, key);
+		if (known != null) {
+			return known;
+		}
+
+		// Work out where the peasant harvests and deposits from
+		Position target = layout.getResourcePosition(resource);
+		Position townHall = layout.getTownHallPosition();
+		Position resourcePosition = target.isAdjacent(start) ? start : layout.nearestAdjacentPosition(start, resource);
+		if (resourcePosition == null) {
+			return null;
+		}
+		Position townHallPosition = townHall.isAdjacent(resourcePosition) ?
+				resourcePosition : layout.nearestAdjacentPosition(resourcePosition, layout.getTownHallTarget());
+		if (townHallPosition == null) {
+			return null;
+		}
+		return intern(layout, key, new GatherCycleAction(unitID, resource, layout.getResourceType(resource), start,
+				resourcePosition, townHallPosition, resourcePosition.getDirection(target),
+				townHallPosition.getDirection(townHall)));
+	}
+
+	/**
+	 * Creates a build of a peasant at the town hall of the state's map
+	 * @return The BuildPeasantAction object of the map
+	 */
+	public static StripsAction makeBuildAction(GameState state) {
+		MapLayout layout = state.getLayout();
+		long key = key(BUILD_PEASANT, 0, 0, 0);
+		StripsAction known = lookup(layout, key);
+		return known != null ? known : intern(layout, key, new BuildPeasantAction(state.getTownHallID()));
+	}
+
+	/**
+	 * Creates a build of a peasant at a known town hall, for actions read back from a saved plan
+	 * @return A BuildPeasantAction object for the given town hall
+	 */
+	public static StripsAction makeBuildAction(int townHallID) {
+		return new BuildPeasantAction(townHallID);
+	}
+
+	/**
+	 * Makes an action again in another state, resolving it from there the way it was resolved when it was first
+	 * made. Used to check a planned action against the game, where a unit may not stand quite where the plan has it.
+	 * @param action The action to make again
+	 * @param state The state to make it in
+	 * @return The same action resolved in the given state, or null if it can not be made there
+	 */
+	public static StripsAction remake(StripsAction action, GameState state) {
+		if (action instanceof MoveAction) {
+			return makeMoveAction(state, action.getUnitID(), ((MoveAction)action).getActionPosition());
+		}
+		if (action instanceof DepositAction) {
+			return makeDepositAction(state, action.getUnitID());
+		}
+		if (action instanceof HarvestAction) {
+			return makeHarvestAction(state, action.getUnitID(), ((HarvestAction)action).getType());
+		}
+		if (action instanceof GatherCycleAction) {
+			return makeGatherCycleAction(state, action.getUnitID(), ((GatherCycleAction)action).getResource());
+		}
+		if (action instanceof BuildPeasantAction) {
+			return makeBuildAction(state);
+		}
+		return action;
+	}
+
+	// Packs the kind, unit and two fields of an action into its key in the action table, or returns -1 if they do
+	// not fit, in which case the action is not interned
+	private static long key(int kind, int unitID, int first, int second) {
+		if (unitID != (short)unitID || first >>> FIELD_BITS != 0 || second >>> FIELD_BITS != 0) {
+			return -1;
+		}
+		return (long)kind << 56 | (long)(unitID & 0xFFFF) << 40 | (long)first << FIELD_BITS | second;
+	}
+
+	// Returns the action already made under a key, or null
+	private static StripsAction lookup(MapLayout layout, long key) {
+		return key < 0 ? null : layout.getActionTable().get(key);
+	}
+
+	// Stores a new action under its key, returning the one another thread stored first if there is one
+	private static StripsAction intern(MapLayout layout, long key, StripsAction action) {
+		if (key < 0) {
+			return action;
+		}
+		ActionTable table = layout.getActionTable();
+		StripsAction known = table.putIfAbsent(key, action);
+		return known != null ? known : action;
+	}
+
+	/**
+	 * A strips action describing a move of the peasant to a free cell
+	 */
+	public static class MoveAction implements StripsAction {
+
+		private final Position position;	// The cell the move ends on
+		private final int unitID;
+
+		private MoveAction(Position pos, int unitid) {
 			this.position = pos;
 			this.unitID = unitid;
 		}
-		
+
 		public Position getActionPosition() {
 			return position;
 		}
-		
+
 		public int getUnitID() {
 			return unitID;
 		}
-		
+
 		@Override
 		public boolean preconditionsMet(GameState state) {
-			// The resultant position must be valid
-			return processPosition(position, state);
+			// The destination must be a free cell in bounds that the peasant is not on already
+			return position.inBounds(state.getXExtent(), state.getYExtent()) &&
+					state.getLayout().targetAt(position) < 0 && !position.equals(state.getPeasantPosition(unitID));
 		}
 
 		@Override
@@ -74,73 +281,47 @@ public class ActionFactory {
 			state.setPeasantPosition(unitID, position);
 			return state;
 		}
-		
-		// Processes and cleans the destination position for the peasant
-		private boolean processPosition(Position pos, GameState state) {
-			
-			// Must be in bounds
-			if (!pos.inBounds(state.getXExtent(), state.getYExtent())) {
-				return false;
-			}
-			
-			// Since moves are between distinct positions, moves to a destination
-			// that the peasant is already adjacent to are not allowed.
-			if (pos.isAdjacent(state.getPeasantPosition(unitID))) { 
-				return false; 
-			}
-			
-			// If the desired position is a resource or town hall,
-			// set the destination to be the nearest position adjacent to it.
-			if (state.isResourceAtPosition(pos) || 
-					pos.equals(state.getTownHallPosition())) {
-				position = pos.getNearestAdjacentPosition(state.getPeasantPosition(unitID));
-			}
-			return true;
-		}
 
 		@Override
 		public double getCost(GameState state) {
-			// Estimated to be the distance between the desired position and the peasant
-			return state.getPeasantPosition(unitID).chebyshevDistance(position);
+			// The length of the path from the peasant to the desired position
+			return state.getLayout().travelDistance(state.getPeasantPosition(unitID), position);
 		}
-		
+
 		@Override
 		public String toString() {
 			return "[Move - ID:" + unitID + ", Position:" + position + "]";
 		}
 	}
-	
+
 	/**
 	 * A strips action describing a peasant depositing a resource
 	 */
-	public class DepositAction implements StripsAction {
-		
-		private int unitID;
-		private Direction direction;
-		
-		public DepositAction(int unitID){
+	public static class DepositAction implements StripsAction {
+
+		private final int unitID;
+		private final Direction direction;	// The direction of the town hall from the peasant
+
+		private DepositAction(int unitID, Direction direction) {
 			this.unitID = unitID;
+			this.direction = direction;
 		}
-		
+
 		public int getUnitID() {
 			return unitID;
 		}
-		
+
 		public Direction getDirection() {
 			return direction;
 		}
-		
+
 		@Override
 		public boolean preconditionsMet(GameState state) {
-			
-			// Peasant must be holding a resource and adjacent to the town hall
+			// Peasant must be holding a resource with the town hall next to it in the deposit's direction
 			Position peasant = state.getPeasantPosition(unitID);
-			boolean nextToTownHall = peasant.isAdjacent(state.getTownHallPosition());
-			if (nextToTownHall) {
-				direction = peasant.getDirection(state.getTownHallPosition());
-				return state.isPeasantHolding(unitID);
-			}
-			return false;
+			Position townHall = state.getTownHallPosition();
+			return state.isPeasantHolding(unitID) && peasant.isAdjacent(townHall) &&
+					peasant.getDirection(townHall) == direction;
 		}
 
 		@Override
@@ -155,65 +336,63 @@ public class ActionFactory {
 			// Primitive action takes unit time
 			return 1.0;
 		}
-		
+
 		@Override
 		public String toString() {
 			return "[Deposit - ID:" + unitID + ", Direction: " + direction + "]";
 		}
 	}
-	
-	public class HarvestAction implements StripsAction {
-
-		private String resourceKey;
-		
-		private int unitID;
-		private Direction direction;
-		private GameState.Resource type;
-		
-		public HarvestAction(int id, GameState.Resource type) {
+
+	public static class HarvestAction implements StripsAction {
+
+		private final int resource;			// The index of the resource harvested from
+
+		private final int unitID;
+		private final Direction direction;	// The direction of the resource from the peasant
+		private final GameState.Resource type;
+
+		private HarvestAction(int id, GameState.Resource type, int resource, Direction direction) {
 			this.unitID = id;
 			this.type = type;
+			this.resource = resource;
+			this.direction = direction;
 		}
-		
+
 		public int getUnitID() {
 			return unitID;
 		}
-		
+
 		public Direction getDirection() {
 			return direction;
 		}
-		
+
+		public GameState.Resource getType() {
+			return type;
+		}
+
+		/**
+		 * @return The index of the resource harvested from
+		 */
+		public int getResource() {
+			return resource;
+		}
+
 		@Override
 		public boolean preconditionsMet(GameState state) {
 			// Peasant must be empty handed
 			if (state.isPeasantHolding(unitID)) { return false; }
-			
-			// Must be next to non-empty resource of given type
+
+			// Must be next to the resource, in the harvest's direction, and it must not be empty
 			Position peasant = state.getPeasantPosition(unitID);
-			Position resource = null;
-			if (type == GameState.Resource.GOLD) {
-				resource = state.goldMineNextToPosition(peasant);
-				if (resource != null) {
-					direction = peasant.getDirection(resource);
-					resourceKey = resource.keyString();
-					return state.isResourceEmpty(type, resourceKey);
-				}
-			}
-			else if (type == GameState.Resource.WOOD) {
-				resource = state.treeNextToPosition(peasant);
-				if (resource != null) {
-					direction = peasant.getDirection(resource);
-					resourceKey = resource.keyString();
-					return state.isResourceEmpty(type, resourceKey);
-				}
-			}
-			return false;
+			Position target = state.getLayout().getResourcePosition(resource);
+			return !state.isResourceEmpty(resource) && peasant.isAdjacent(target) &&
+					peasant.getDirection(target) == direction;
 		}
 
 		@Override
 		public GameState apply(GameState state) {
 			// Sets peasant to holding 100 or less, removes from resource count
-			state.harvestResource(unitID, resourceKey, type);
+			state.harvestResource(unitID, resource);
 			return state;
 		}
 
@@ -222,25 +401,121 @@ public class ActionFactory {
 			// Primitive action takes unit time
 			return 1.0;
 		}
-		
+
 		@Override
 		public String toString() {
 			return "[Harvest - Type:" + type + ", ID:" + unitID + ", Direction:" + direction + "]";
 		}
-		
+
+	}
+
+	/**
+	 * A macro action for a whole harvest trip by one peasant: move next to a resource, harvest it, move next to the
+	 * town hall and deposit. The plan executor expands it back into those four primitive actions.
+	 */
+	public static class GatherCycleAction implements StripsAction {
+
+		private final int unitID;
+		private final int resource;
+		private final GameState.Resource type;
+
+		private final Position start;				// Where the peasant starts the trip
+		private final Position resourcePosition;	// Where the peasant harvests from
+		private final Position townHallPosition;	// Where the peasant deposits from
+		private final Direction harvestDirection;
+		private final Direction depositDirection;
+
+		private GatherCycleAction(int unitID, int resource, GameState.Resource type, Position start,
+				Position resourcePosition, Position townHallPosition, Direction harvestDirection,
+				Direction depositDirection) {
+			this.unitID = unitID;
+			this.resource = resource;
+			this.type = type;
+			this.start = start;
+			this.resourcePosition = resourcePosition;
+			this.townHallPosition = townHallPosition;
+			this.harvestDirection = harvestDirection;
+			this.depositDirection = depositDirection;
+		}
+
+		public int getUnitID() {
+			return unitID;
+		}
+
+		public int getResource() {
+			return resource;
+		}
+
+		/**
+		 * The primitive actions this trip is made of, in order. Moves are left out when the peasant is already
+		 * next to their destination.
+		 * @return The moves, harvest and deposit making up the trip
+		 */
+		public List<StripsAction> getPrimitiveActions() {
+			List<StripsAction> actions = new ArrayList<StripsAction>();
+			if (!resourcePosition.equals(start)) {
+				actions.add(new MoveAction(resourcePosition, unitID));
+			}
+			actions.add(new HarvestAction(unitID, type, resource, harvestDirection));
+			if (!townHallPosition.equals(resourcePosition)) {
+				actions.add(new MoveAction(townHallPosition, unitID));
+			}
+			actions.add(new DepositAction(unitID, depositDirection));
+			return actions;
+		}
+
+		@Override
+		public boolean preconditionsMet(GameState state) {
+			// Peasant must be empty handed where the trip starts and the resource must not be empty
+			return !state.isPeasantHolding(unitID) && !state.isResourceEmpty(resource) &&
+					start.equals(state.getPeasantPosition(unitID));
+		}
+
+		@Override
+		public GameState apply(GameState state) {
+			// Harvest, walk back and deposit in one step
+			state.harvestResource(unitID, resource);
+			state.setPeasantPosition(unitID, townHallPosition);
+			state.depositResource(unitID);
+			return state;
+		}
+
+		@Override
+		public double getCost(GameState state) {
+			// Both walks plus the harvest and the deposit
+			MapLayout layout = state.getLayout();
+			return layout.travelDistance(start, resourcePosition) + 1.0 +
+					layout.travelDistance(resourcePosition, townHallPosition) + 1.0;
+		}
+
+		@Override
+		public String toString() {
+			return "[GatherCycle - Type:" + type + ", ID:" + unitID + ", Resource:" +
+					resourcePosition.move(harvestDirection) + "]";
+		}
 	}
-	
-	public class BuildPeasantAction implements StripsAction {
 
-		private int townHallID;
-		
+	public static class BuildPeasantAction implements StripsAction {
+
+		/**
+		 * The gold a peasant costs. The planner's heuristic, its pruning and the plan scheduler all read it from here.
+		 */
+		public static final int GOLD_COST = 400;
+
+		private final int townHallID;
+
+		private BuildPeasantAction(int townHallID) {
+			this.townHallID = townHallID;
+		}
+
 		@Override
 		public boolean preconditionsMet(GameState state) {
 			boolean met = false;
 			// Must have sufficient gold and food;
-			met = state.getCurrentGold() >= 400;
+			met = state.getCurrentGold() >= GOLD_COST;
 			met = met && state.getCurrentFood() > 0;
-			townHallID = state.getTownHallID();
+			// The peasant needs somewhere to appear
+			met = met && state.getLayout().getPeasantSpawnPosition() != null;
 			return met;
 		}
 
@@ -260,7 +535,12 @@ public class ActionFactory {
 		public int getUnitID() {
 			return townHallID;
 		}
-		
+
+		@Override
+		public String toString() {
+			return "[BuildPeasant - ID:" + townHallID + "]";
+		}
+
 	}
-	
+
 }